@@ -0,0 +1,166 @@
+package blackboard.ws.client;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of web service calls in flight across all clients, and
+ * adapts that limit to how the Learn server is coping (AIMD, as TCP does).
+ *
+ * The limit starts low, at the initial limit, so that the server isn't hit
+ * with the maximum number of calls before anything is known of how it copes.
+ * Each shape of call keeps a slow moving baseline of its latency and a fast
+ * moving recent latency.  The shape is the operation and the size of its
+ * response, to within a factor of two, so that a whole course's scores, a
+ * column's and a slice of a column's are each compared to calls of about
+ * the same size, and a large response isn't taken for congestion.  While
+ * the recent latency stays close to the baseline, the limit grows by about
+ * one call per round of calls.  When a call fails, the limit is halved, and
+ * when the recent latency of a call climbs well above its baseline the limit
+ * is cut by a tenth.  Either happens at most once per round of calls, as the
+ * calls already in flight will all report the same trouble.  The limit
+ * always stays between the configured minimum and maximum.
+ *
+ * Calls wait on a lock rather than a monitor, so that a virtual thread held
+ * back by the throttle doesn't pin its carrier thread.
+ */
+class AdaptiveThrottle implements WebServiceClient.CallMonitor
+{
+  // Smoothing of the baseline and recent latencies.
+  private static final double BASELINE_WEIGHT = 0.02;
+  private static final double RECENT_WEIGHT = 0.3;
+
+  // Recent latency above this multiple of the baseline counts as congestion.
+  private static final double CONGESTION_RATIO = 2.0;
+
+  private static final double FAILURE_BACKOFF = 0.5;
+  private static final double CONGESTION_BACKOFF = 0.9;
+
+  private final int _minLimit;
+  private final int _maxLimit;
+  private final Map<String, double[]> _latencyByShape = new HashMap<String, double[]>();
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _belowLimit = _lock.newCondition();
+
+  private double _limit;
+  private int _inFlight = 0;
+  private int _callsSinceBackoff = 0;
+
+  // Totals for the end of run summary
+  private long _calls = 0;
+  private long _failures = 0;
+  private long _backoffs = 0;
+  private double _lowestLimit;
+
+  AdaptiveThrottle( int minLimit, int initialLimit, int maxLimit )
+  {
+    _minLimit = Math.max( 1, minLimit );
+    _maxLimit = Math.max( _minLimit, maxLimit );
+    _limit = Math.min( _maxLimit, Math.max( _minLimit, initialLimit ) );
+    _lowestLimit = _limit;
+  }
+
+  /* Waits until the call fits under the current limit. */
+  public void beforeCall( String operation ) throws RemoteException
+  {
+    _lock.lock();
+    try {
+      while ( _inFlight >= (int) _limit ) {
+        _belowLimit.await();
+      }
+      _inFlight++;
+    }
+    catch( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException( "Interrupted while waiting to call [" + operation + "].", e );
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  public void afterCall( String operation, int results, long latencyNanos, boolean failed )
+  {
+    _lock.lock();
+    try {
+      update( operation, results, latencyNanos, failed );
+      _belowLimit.signalAll();
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  /* How far the limit has been pushed down, from 0 (at the maximum) to 1 (at the minimum). */
+  double getPressure()
+  {
+    _lock.lock();
+    try {
+      if ( _maxLimit == _minLimit ) {
+        return 0;
+      }
+      return (_maxLimit - _limit) / (_maxLimit - _minLimit);
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  String summary()
+  {
+    _lock.lock();
+    try {
+      return "Adaptive throttle: " + _calls + " calls, " + _failures + " failed, " + _backoffs + " backoffs, limit "
+        + (int) _limit + " (lowest " + (int) _lowestLimit + ", range " + _minLimit + "-" + _maxLimit + ")";
+    }
+    finally {
+      _lock.unlock();
+    }
+  }
+
+  private void update( String operation, int results, long latencyNanos, boolean failed )
+  {
+    _inFlight--;
+    _calls++;
+    _callsSinceBackoff++;
+
+    if ( failed ) {
+      _failures++;
+      if ( _callsSinceBackoff >= _limit ) {
+        backoff( FAILURE_BACKOFF );
+      }
+    }
+    else {
+      // Sized by powers of two: 0, 1, 2-3, 4-7, ...
+      String shape = operation + "#" + (32 - Integer.numberOfLeadingZeros( results ));
+      double[] latency = _latencyByShape.get( shape );
+      if ( null == latency ) {
+        // { baseline, recent }
+        latency = new double[] { latencyNanos, latencyNanos };
+        _latencyByShape.put( shape, latency );
+      }
+      latency[ 0 ] += BASELINE_WEIGHT * (latencyNanos - latency[ 0 ]);
+      latency[ 1 ] += RECENT_WEIGHT * (latencyNanos - latency[ 1 ]);
+
+      if ( latency[ 1 ] > CONGESTION_RATIO * latency[ 0 ] ) {
+        if ( _callsSinceBackoff >= _limit ) {
+          backoff( CONGESTION_BACKOFF );
+        }
+      }
+      else {
+        _limit = Math.min( _maxLimit, _limit + (1.0 / _limit) );
+      }
+    }
+  }
+
+  private void backoff( double ratio )
+  {
+    _limit = Math.max( _minLimit, _limit * ratio );
+    _lowestLimit = Math.min( _lowestLimit, _limit );
+    _callsSinceBackoff = 0;
+    _backoffs++;
+  }
+}
@@ -0,0 +1,85 @@
+package blackboard.ws.client;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the number of web service calls in flight across all clients with a
+ * semaphore, so the load on the server no longer depends on how many threads
+ * happen to be making calls.  A permit is held from before the call is sent
+ * until it returns.
+ *
+ * Another monitor (e.g. the adaptive throttle) can be chained behind the
+ * limiter, it is only consulted once a permit is held.
+ */
+class CallLimiter implements WebServiceClient.CallMonitor
+{
+  private final int _maxCalls;
+  private final Semaphore _permits;
+  private final WebServiceClient.CallMonitor _next;
+
+  // Totals for the end of run summary
+  private final AtomicInteger _inFlight = new AtomicInteger();
+  private final AtomicInteger _peakInFlight = new AtomicInteger();
+  private final AtomicLong _calls = new AtomicLong();
+  private final AtomicLong _waitNanos = new AtomicLong();
+
+  CallLimiter( int maxCalls, WebServiceClient.CallMonitor next )
+  {
+    _maxCalls = Math.max( 1, maxCalls );
+    _permits = new Semaphore( _maxCalls, true );
+    _next = next;
+  }
+
+  public void beforeCall( String operation ) throws RemoteException
+  {
+    long start = System.nanoTime();
+    try {
+      _permits.acquire();
+    }
+    catch( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException( "Interrupted while waiting to call [" + operation + "].", e );
+    }
+    _waitNanos.addAndGet( System.nanoTime() - start );
+
+    if ( null != _next ) {
+      try {
+        _next.beforeCall( operation );
+      }
+      catch( RemoteException e ) {
+        _permits.release();
+        throw e;
+      }
+    }
+
+    int inFlight = _inFlight.incrementAndGet();
+    for ( int peak = _peakInFlight.get(); inFlight > peak; peak = _peakInFlight.get() ) {
+      if ( _peakInFlight.compareAndSet( peak, inFlight ) ) {
+        break;
+      }
+    }
+  }
+
+  public void afterCall( String operation, int results, long latencyNanos, boolean failed )
+  {
+    _calls.incrementAndGet();
+    _inFlight.decrementAndGet();
+    try {
+      if ( null != _next ) {
+        _next.afterCall( operation, results, latencyNanos, failed );
+      }
+    }
+    finally {
+      _permits.release();
+    }
+  }
+
+  String summary()
+  {
+    return "Call limiter: " + _calls.get() + " calls, at most " + _peakInFlight.get() + " of " + _maxCalls
+      + " in flight, " + (_waitNanos.get() / 1000000L) + " ms spent waiting for a permit";
+  }
+}
@@ -0,0 +1,164 @@
+package blackboard.ws.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A report file written through its FileChannel from one large direct
+ * buffer, instead of a BufferedOutputStream's 8 KB heap buffer, so a
+ * multi-GB report takes a few thousand write calls rather than hundreds of
+ * thousands, and the JDK doesn't copy each one to a temporary direct buffer
+ * first.  Course segments, many open at once, get a small heap buffer
+ * instead.
+ *
+ * How durable the file is made is up to the sync policy:
+ *   none    left to the operating system, as before;
+ *   course  forced to disk after every course, so a crash loses at most the
+ *           course being written (and a lease directory never marks a course
+ *           done before it is on disk);
+ *   close   forced to disk once, when the file is closed, before it is moved
+ *           into place.
+ */
+class ChannelOutputStream extends OutputStream
+{
+  static final String SYNC_NONE = "none";
+  static final String SYNC_COURSE = "course";
+  static final String SYNC_CLOSE = "close";
+
+  private final FileChannel _channel;
+  private final ByteBuffer _buffer;
+  private final String _sync;
+
+  // Totals for the end of run summary, only touched by the thread writing.
+  private long _bytes = 0;
+  private long _writes = 0;
+  private long _syncs = 0;
+  private long _syncNanos = 0;
+
+  ChannelOutputStream( File file, boolean append, int bufferSize, String sync ) throws IOException {
+    this( file, append, ByteBuffer.allocateDirect( Math.max( 4096, bufferSize ) ), sync );
+  }
+
+  /* Writes through the buffer given, for files too many at once to each have a large direct one. */
+  ChannelOutputStream( File file, boolean append, ByteBuffer buffer, String sync ) throws IOException
+  {
+    _channel = new FileOutputStream( file, append ).getChannel();
+    _buffer = buffer;
+    _sync = sync;
+  }
+
+  /* The sync policy named in the configuration, or an IllegalArgumentException. */
+  static String checkSync( String sync )
+  {
+    String policy = sync.trim().toLowerCase();
+    if ( !SYNC_NONE.equals( policy ) && !SYNC_COURSE.equals( policy ) && !SYNC_CLOSE.equals( policy ) ) {
+      throw new IllegalArgumentException( "Unknown app.outputSync [" + sync + "], use none, course or close." );
+    }
+    return policy;
+  }
+
+  /* The channel, for copying into with transferTo once the buffer is flushed. */
+  FileChannel getChannel() {
+    return _channel;
+  }
+
+  @Override
+  public void write( int b ) throws IOException
+  {
+    if ( !_buffer.hasRemaining() ) {
+      drain();
+    }
+    _buffer.put( (byte) b );
+  }
+
+  @Override
+  public void write( byte[] bytes, int offset, int length ) throws IOException
+  {
+    while ( length > 0 ) {
+      if ( !_buffer.hasRemaining() ) {
+        drain();
+      }
+      int count = Math.min( length, _buffer.remaining() );
+      _buffer.put( bytes, offset, count );
+      offset += count;
+      length -= count;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    drain();
+  }
+
+  /* A course is complete in the file: forces it to disk if syncing per course. */
+  void endCourse() throws IOException
+  {
+    if ( SYNC_COURSE.equals( _sync ) ) {
+      drain();
+      force();
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if ( !_channel.isOpen() ) {
+      return;
+    }
+    try {
+      drain();
+      if ( !SYNC_NONE.equals( _sync ) ) {
+        force();
+      }
+    }
+    finally {
+      _channel.close();
+    }
+  }
+
+  String summary()
+  {
+    return "Report output: " + (_bytes / 1024) + " KB in " + _writes + " writes of up to " + (_buffer.capacity() / 1024)
+      + " KB, " + _syncs + " syncs (" + _sync + ") taking " + (_syncNanos / 1000000L) + " ms";
+  }
+
+  /*
+   * Moves a finished report over the target in one step, so the target is
+   * always either the previous report or the whole new one.  Falls back to
+   * a plain replace where the file system can't move atomically.
+   */
+  static void moveIntoPlace( File source, File target ) throws IOException
+  {
+    try {
+      Files.move( source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE );
+    }
+    catch( AtomicMoveNotSupportedException e ) {
+      Files.move( source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+  }
+
+  private void drain() throws IOException
+  {
+    _buffer.flip();
+    while ( _buffer.hasRemaining() ) {
+      _bytes += _channel.write( _buffer );
+      _writes++;
+    }
+    _buffer.clear();
+  }
+
+  private void force() throws IOException
+  {
+    long start = System.nanoTime();
+    _channel.force( true );
+    _syncs++;
+    _syncNanos += System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,398 @@
+package blackboard.ws.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes rows to a binary columnar file, so the report can be loaded into a
+ * warehouse without parsing and converting the delimited text.  Rows are
+ * collected into row groups of a fixed number of rows, and each row group is
+ * written out column by column as soon as it is full, so memory is bounded
+ * by the row group size whatever the size of the report.
+ *
+ * Layout (big-endian, strings as an int byte length, -1 for null, then UTF-8):
+ *
+ *   "GCOL" int:version int:fieldCount { string:name byte:type }...
+ *   row groups:
+ *     int:rows { int:chunkLength chunk }... one chunk per field
+ *   footer:
+ *     int:rowGroups { long:offset int:rows { stats }... }...
+ *     long:footerOffset "GCOL"
+ *
+ * Chunks by type:
+ *   STRING   byte:encoding, then DICTIONARY: int:size { string }... byte:width
+ *            and an index of that width (1, 2 or 4 bytes) per row; or PLAIN:
+ *            a string per row, where the dictionary wouldn't be any smaller
+ *   BOOLEAN  a byte (0 or 1) per row
+ *   INT, LONG, DOUBLE
+ *            a bitmap of the rows with a value (bit 7 of the first byte is
+ *            the first row), then the values of those rows, 4, 8 and 8 bytes
+ *
+ * Stats by type, for readers to skip row groups:
+ *   STRING   int:nulls int:distinct (-1 if plain) string:min string:max
+ *   BOOLEAN  int:trues
+ *   numbers  int:nulls then min and max as values of the type (only if
+ *            there are any values)
+ *
+ * Not thread safe, the rows of a file come from one thread.
+ */
+class ColumnarWriter
+{
+  static final byte STRING = 1;
+  static final byte BOOLEAN = 2;
+  static final byte INT = 3;
+  static final byte LONG = 4;
+  static final byte DOUBLE = 5;
+
+  private static final byte[] MAGIC = { 'G', 'C', 'O', 'L' };
+  private static final int VERSION = 1;
+  private static final byte DICTIONARY = 0;
+  private static final byte PLAIN = 1;
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  private final OutputStream _out;
+  private final int _rowGroupRows;
+  private final Column[] _columns;
+  private int _rows = 0;
+  private long _offset = 0;
+  private long _totalRows = 0;
+
+  // Where each row group starts and its stats, for the footer.
+  private int _rowGroups = 0;
+  private final ByteArrayOutputStream _stats = new ByteArrayOutputStream();
+
+  // Reused to encode a row group before it is written.
+  private final ByteArrayOutputStream _group = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream _chunk = new ByteArrayOutputStream();
+
+  ColumnarWriter( OutputStream out, String[] names, byte[] types, int rowGroupRows ) throws IOException
+  {
+    _out = out;
+    _rowGroupRows = Math.max( 1, rowGroupRows );
+    _columns = new Column[ types.length ];
+    for ( int ff = 0; ff < types.length; ff++ ) {
+      _columns[ ff ] = (STRING == types[ ff ]) ? new StringColumn( _rowGroupRows )
+                     : (BOOLEAN == types[ ff ]) ? new BooleanColumn( _rowGroupRows )
+                     : new NumberColumn( types[ ff ], _rowGroupRows );
+    }
+
+    DataOutputStream header = new DataOutputStream( _group );
+    header.write( MAGIC );
+    header.writeInt( VERSION );
+    header.writeInt( names.length );
+    for ( int ff = 0; ff < names.length; ff++ ) {
+      writeString( header, names[ ff ] );
+      header.writeByte( types[ ff ] );
+    }
+    writeGroupBuffer();
+  }
+
+  void setString( int field, String value ) {
+    ((StringColumn) _columns[ field ])._values[ _rows ] = value;
+  }
+
+  void setBoolean( int field, boolean value ) {
+    ((BooleanColumn) _columns[ field ])._values[ _rows ] = value;
+  }
+
+  void setInt( int field, int value ) {
+    ((NumberColumn) _columns[ field ]).set( _rows, value );
+  }
+
+  void setLong( int field, long value ) {
+    ((NumberColumn) _columns[ field ]).set( _rows, value );
+  }
+
+  void setDouble( int field, double value ) {
+    ((NumberColumn) _columns[ field ]).set( _rows, Double.doubleToRawLongBits( value ) );
+  }
+
+  /* Leaves a field of the current row empty. */
+  void setNull( int field ) {
+    _columns[ field ].setNull( _rows );
+  }
+
+  /* Ends the current row, writing out the row group once it is full. */
+  void endRow() throws IOException
+  {
+    _rows++;
+    if ( _rows == _rowGroupRows ) {
+      writeRowGroup();
+    }
+  }
+
+  /* Writes out the last row group and the footer, and closes the stream. */
+  void close() throws IOException
+  {
+    try {
+      if ( _rows > 0 ) {
+        writeRowGroup();
+      }
+      long footerOffset = _offset;
+      DataOutputStream footer = new DataOutputStream( _group );
+      footer.writeInt( _rowGroups );
+      _stats.writeTo( footer );
+      footer.writeLong( footerOffset );
+      footer.write( MAGIC );
+      writeGroupBuffer();
+    }
+    finally {
+      _out.close();
+    }
+  }
+
+  /* Closes the stream without finishing the file, for an export that is given up on. */
+  void abort()
+  {
+    try {
+      _out.close();
+    }
+    catch( IOException e ) {
+      // Given up on anyway.
+    }
+  }
+
+  String summary()
+  {
+    return "Columnar export: " + _totalRows + " rows in " + _rowGroups + " row groups, " + (_offset / 1024) + " KB";
+  }
+
+  private void writeRowGroup() throws IOException
+  {
+    _rowGroups++;
+    DataOutputStream group = new DataOutputStream( _group );
+    DataOutputStream stats = new DataOutputStream( _stats );
+    stats.writeLong( _offset );
+    stats.writeInt( _rows );
+    group.writeInt( _rows );
+    for ( Column column : _columns ) {
+      _chunk.reset();
+      column.write( new DataOutputStream( _chunk ), stats, _rows );
+      group.writeInt( _chunk.size() );
+      _chunk.writeTo( group );
+      column.clear( _rows );
+    }
+    _totalRows += _rows;
+    _rows = 0;
+    writeGroupBuffer();
+  }
+
+  private void writeGroupBuffer() throws IOException
+  {
+    _group.writeTo( _out );
+    _offset += _group.size();
+    _group.reset();
+  }
+
+  private static void writeString( DataOutputStream out, String value ) throws IOException
+  {
+    if ( null == value ) {
+      out.writeInt( -1 );
+      return;
+    }
+    byte[] bytes = value.getBytes( UTF8 );
+    out.writeInt( bytes.length );
+    out.write( bytes );
+  }
+
+  private static abstract class Column
+  {
+    abstract void setNull( int row );
+    abstract void write( DataOutputStream chunk, DataOutputStream stats, int rows ) throws IOException;
+    abstract void clear( int rows );
+  }
+
+  private static class StringColumn extends Column
+  {
+    private final String[] _values;
+    private final Map<String, Integer> _dictionary = new HashMap<String, Integer>();
+    private final List<String> _entries = new ArrayList<String>();
+
+    private StringColumn( int size ) {
+      _values = new String[ size ];
+    }
+
+    void setNull( int row ) {
+      _values[ row ] = null;
+    }
+
+    void write( DataOutputStream chunk, DataOutputStream stats, int rows ) throws IOException
+    {
+      int nulls = 0;
+      String min = null;
+      String max = null;
+      int[] indexes = new int[ rows ];
+      for ( int rr = 0; rr < rows; rr++ ) {
+        String value = _values[ rr ];
+        if ( null == value ) {
+          nulls++;
+        }
+        else {
+          min = ((null == min) || (value.compareTo( min ) < 0)) ? value : min;
+          max = ((null == max) || (value.compareTo( max ) > 0)) ? value : max;
+        }
+        Integer index = _dictionary.get( value );
+        if ( null == index ) {
+          index = _entries.size();
+          _dictionary.put( value, index );
+          _entries.add( value );
+        }
+        indexes[ rr ] = index;
+      }
+
+      // Mostly distinct values (e.g. grade PKs) are cheaper written as they are.
+      boolean dictionary = _entries.size() <= rows / 2;
+      if ( dictionary ) {
+        chunk.writeByte( DICTIONARY );
+        chunk.writeInt( _entries.size() );
+        for ( String entry : _entries ) {
+          writeString( chunk, entry );
+        }
+        int width = (_entries.size() <= 0x100) ? 1 : (_entries.size() <= 0x10000) ? 2 : 4;
+        chunk.writeByte( width );
+        for ( int rr = 0; rr < rows; rr++ ) {
+          if ( 1 == width ) {
+            chunk.writeByte( indexes[ rr ] );
+          }
+          else if ( 2 == width ) {
+            chunk.writeShort( indexes[ rr ] );
+          }
+          else {
+            chunk.writeInt( indexes[ rr ] );
+          }
+        }
+      }
+      else {
+        chunk.writeByte( PLAIN );
+        for ( int rr = 0; rr < rows; rr++ ) {
+          writeString( chunk, _values[ rr ] );
+        }
+      }
+
+      stats.writeInt( nulls );
+      stats.writeInt( dictionary ? _entries.size() : -1 );
+      writeString( stats, min );
+      writeString( stats, max );
+    }
+
+    void clear( int rows )
+    {
+      Arrays.fill( _values, 0, rows, null );
+      _dictionary.clear();
+      _entries.clear();
+    }
+  }
+
+  private static class BooleanColumn extends Column
+  {
+    private final boolean[] _values;
+
+    private BooleanColumn( int size ) {
+      _values = new boolean[ size ];
+    }
+
+    void setNull( int row ) {
+      _values[ row ] = false;
+    }
+
+    void write( DataOutputStream chunk, DataOutputStream stats, int rows ) throws IOException
+    {
+      int trues = 0;
+      for ( int rr = 0; rr < rows; rr++ ) {
+        chunk.writeByte( _values[ rr ] ? 1 : 0 );
+        trues += _values[ rr ] ? 1 : 0;
+      }
+      stats.writeInt( trues );
+    }
+
+    void clear( int rows ) {
+      Arrays.fill( _values, 0, rows, false );
+    }
+  }
+
+  /* Ints, longs and doubles, all held as longs (doubles by their bits) until written. */
+  private static class NumberColumn extends Column
+  {
+    private final byte _type;
+    private final long[] _values;
+    private final boolean[] _present;
+
+    private NumberColumn( byte type, int size ) {
+      _type = type;
+      _values = new long[ size ];
+      _present = new boolean[ size ];
+    }
+
+    void set( int row, long value ) {
+      _values[ row ] = value;
+      _present[ row ] = true;
+    }
+
+    void setNull( int row ) {
+      _present[ row ] = false;
+    }
+
+    void write( DataOutputStream chunk, DataOutputStream stats, int rows ) throws IOException
+    {
+      int nulls = 0;
+      for ( int rr = 0; rr < rows; rr += 8 ) {
+        int bits = 0;
+        for ( int bb = 0; bb < 8; bb++ ) {
+          bits = (bits << 1) | (((rr + bb < rows) && _present[ rr + bb ]) ? 1 : 0);
+        }
+        chunk.writeByte( bits );
+      }
+
+      long min = 0;
+      long max = 0;
+      boolean any = false;
+      for ( int rr = 0; rr < rows; rr++ ) {
+        if ( !_present[ rr ] ) {
+          nulls++;
+          continue;
+        }
+        long value = _values[ rr ];
+        writeValue( chunk, value );
+        if ( !any || less( value, min ) ) {
+          min = value;
+        }
+        if ( !any || less( max, value ) ) {
+          max = value;
+        }
+        any = true;
+      }
+
+      stats.writeInt( nulls );
+      if ( any ) {
+        writeValue( stats, min );
+        writeValue( stats, max );
+      }
+    }
+
+    void clear( int rows ) {
+      Arrays.fill( _present, 0, rows, false );
+    }
+
+    private void writeValue( DataOutputStream out, long value ) throws IOException
+    {
+      if ( INT == _type ) {
+        out.writeInt( (int) value );
+      }
+      else {
+        out.writeLong( value ); // A double's bits are its big-endian encoding
+      }
+    }
+
+    private boolean less( long a, long b ) {
+      return (DOUBLE == _type) ? (Double.longBitsToDouble( a ) < Double.longBitsToDouble( b )) : (a < b);
+    }
+  }
+}
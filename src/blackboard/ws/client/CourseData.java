@@ -0,0 +1,179 @@
+package blackboard.ws.client;
+
+import java.util.Arrays;
+
+import blackboard.ws.course.CourseWSStub.CourseVO;
+
+/**
+ * Everything loaded from the web services for a single course, handed from
+ * one stage of the extract to the next.  The responses are held as compact
+ * {@link CourseSnapshot} tables.  Once fetched, {@link #join(IdDictionary)}
+ * lines up the students with their memberships and scores so the rows can be
+ * written without any further lookups.
+ */
+class CourseData
+{
+  /* Marks the end of the courses in a stage's queue. */
+  static final CourseData END = new CourseData( -1, null );
+
+  private final int _sequence;
+  private final CourseVO _course;
+  private final CourseSnapshot.Columns _columns;
+  private final CourseSnapshot.Users _users;
+  private final CourseSnapshot.Members _members;
+  private final CourseSnapshot.Scores _scores;
+  private boolean _failed = false;
+
+  // Set by join(), the students (users with a membership) in username order
+  // as positions in the users and memberships, and the position in the
+  // scores of each student's score in each column (-1 where ungraded).
+  private int[] _studentUsers;
+  private int[] _studentMembers;
+  private int[][] _columnScores;
+
+  /* A course that was skipped (or failed to load, see failed()), it has no rows. */
+  CourseData( int sequence, CourseVO course )
+  {
+    this( sequence, course, null, null, null, null );
+  }
+
+  /* A course that failed to load, already reported as an error. */
+  static CourseData failed( int sequence, CourseVO course )
+  {
+    CourseData data = new CourseData( sequence, course );
+    data._failed = true;
+    return data;
+  }
+
+  CourseData( int sequence, CourseVO course, CourseSnapshot.Columns columns, CourseSnapshot.Users users,
+              CourseSnapshot.Members members, CourseSnapshot.Scores scores )
+  {
+    _sequence = sequence;
+    _course = course;
+    _columns = columns;
+    _users = users;
+    _members = members;
+    _scores = scores;
+  }
+
+  /* Position of the course in the report. */
+  int getSequence() {
+    return _sequence;
+  }
+
+  CourseVO getCourse() {
+    return _course;
+  }
+
+  boolean isSkipped() {
+    return null == _columns;
+  }
+
+  boolean isFailed() {
+    return _failed;
+  }
+
+  /* The columns, in position order. */
+  CourseSnapshot.Columns getColumns() {
+    return _columns;
+  }
+
+  CourseSnapshot.Users getUsers() {
+    return _users;
+  }
+
+  CourseSnapshot.Members getMembers() {
+    return _members;
+  }
+
+  CourseSnapshot.Scores getScores() {
+    return _scores;
+  }
+
+  int getStudentCount() {
+    return _studentUsers.length;
+  }
+
+  /* Position of a student in the users. */
+  int getStudentUser( int student ) {
+    return _studentUsers[ student ];
+  }
+
+  /* Position of a student's membership in the memberships. */
+  int getStudentMember( int student ) {
+    return _studentMembers[ student ];
+  }
+
+  /* Position of a student's score in a column in the scores, -1 where ungraded. */
+  int getColumnScore( int columnIndex, int student ) {
+    return _columnScores[ columnIndex ][ student ];
+  }
+
+  /* The size of a fetched course, memberships times columns, known before the join. */
+  long getSize() {
+    return isSkipped() ? 0 : (long) _members.size() * _columns.size();
+  }
+
+  /* The number of rows this course contributes to the report. */
+  int getRowCount() {
+    return isSkipped() ? 0 : _columns.size() * _studentUsers.length;
+  }
+
+  /* Matches students to their memberships and scores.  The PK ids are matched by their
+     keys in the given dictionary, which is cleared first. */
+  void join( IdDictionary ids )
+  {
+    if ( isSkipped() ) {
+      return;
+    }
+    ids.clear();
+
+    // Map the memberships to their user for quick lookup.  If a user has
+    // more than one, the last one wins.
+    LongIntMap membersByUserKey = new LongIntMap( _members.size() );
+    for ( int mm = 0; mm < _members.size(); mm++ ) {
+      String userId = _members._userId.get( mm );
+      if ( null != userId ) {
+        membersByUserKey.put( ids.key( userId ), mm );
+      }
+    }
+
+    int[] studentUsers = new int[ _users.size() ];
+    int[] studentMembers = new int[ _users.size() ];
+    int students = 0;
+    for ( int uu = 0; uu < _users.size(); uu++ ) {
+      // Look up the membership.
+      String userId = _users._id.get( uu );
+      int mm = (null == userId) ? -1 : membersByUserKey.get( ids.key( userId ), -1 );
+      if( mm < 0 ) {
+        // This can happen if the user is a non-student in the course or
+        // if the user's enrollment is disabled...
+        continue;
+      }
+      studentUsers[ students ] = uu;
+      studentMembers[ students ] = mm;
+      students++;
+    }
+    _studentUsers = Arrays.copyOf( studentUsers, students );
+    _studentMembers = Arrays.copyOf( studentMembers, students );
+
+    ScoreIndex scoreIndex = new ScoreIndex( _scores, ids );
+    int[] memberKeys = new int[ students ];
+    for ( int ss = 0; ss < students; ss++ ) {
+      String memberId = _members._id.get( _studentMembers[ ss ] );
+      memberKeys[ ss ] = (null == memberId) ? -1 : ids.key( memberId );
+    }
+    _columnScores = new int[ _columns.size() ][];
+    for ( int cc = 0; cc < _columns.size(); cc++ ) {
+      if ( null == _columns._id[ cc ] ) {
+        throw new IllegalStateException( "Gradebook column [" + cc + "] is missing." );
+      }
+      int columnKey = ids.key( _columns._id[ cc ] );
+      int[] scores = new int[ students ];
+      for ( int ss = 0; ss < students; ss++ ) {
+        scores[ ss ] = (memberKeys[ ss ] < 0) ? -1 : scoreIndex.get( columnKey, memberKeys[ ss ] );
+      }
+      _columnScores[ cc ] = scores;
+    }
+  }
+}
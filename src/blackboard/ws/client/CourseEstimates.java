@@ -0,0 +1,120 @@
+package blackboard.ws.client;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How large each course is, by courseId, kept from one run to the next so
+ * the largest courses can be started first.  A course's size is its
+ * memberships times its columns (the rows it has at most), which is what
+ * its fetch and the stages after it cost, and unlike its fetch time doesn't
+ * depend on how busy the server or the pool of clients happened to be.  A
+ * course's estimate is the average of its previous estimate and its latest
+ * size, so a course that changes a lot between runs moves gradually.
+ * Courses that have never been fetched are estimated at the average of the
+ * known ones.
+ *
+ * The file is a plain properties file of courseId=rows whose first line is
+ * the VERSION comment.  Files that don't start with it (the fetch times of
+ * older versions) are ignored.
+ */
+class CourseEstimates
+{
+  private static final org.apache.commons.logging.Log _LOG = //
+    org.apache.commons.logging.LogFactory.getLog( CourseEstimates.class );
+
+  private static final String VERSION = "#Course size estimates v2 (courseId=rows)\n";
+
+  private final File _file;
+  private final Map<String, Long> _previous = new ConcurrentHashMap<String, Long>();
+  private final Map<String, Long> _measured = new ConcurrentHashMap<String, Long>();
+  private long _average = 0;
+
+  CourseEstimates( File file )
+  {
+    _file = file;
+  }
+
+  /* Loads the estimates of the previous runs, if any. */
+  void load() throws IOException
+  {
+    if ( !_file.exists() ) {
+      _LOG.info( "No course estimates found at [" + _file + "], courses will be scheduled as estimates are collected." );
+      return;
+    }
+    byte[] bytes = Files.readAllBytes( _file.toPath() );
+    byte[] version = VERSION.getBytes( "ISO-8859-1" );
+    if ( (bytes.length < version.length) || !Arrays.equals( version, Arrays.copyOf( bytes, version.length ) ) ) {
+      _LOG.info( "Ignoring the course estimates in [" + _file + "], they are from an older version." );
+      return;
+    }
+    Properties props = new Properties();
+    props.load( new ByteArrayInputStream( bytes ) );
+
+    long total = 0;
+    for ( String courseId : props.stringPropertyNames() ) {
+      try {
+        long rows = Long.parseLong( props.getProperty( courseId ).trim() );
+        _previous.put( courseId, rows );
+        total += rows;
+      }
+      catch( NumberFormatException e ) {
+        _LOG.warn( "Ignoring bad course estimate [" + courseId + "=" + props.getProperty( courseId ) + "]." );
+      }
+    }
+    _average = _previous.isEmpty() ? 0 : total / _previous.size();
+    _LOG.info( "Loaded estimates for [" + _previous.size() + "] courses from [" + _file + "]." );
+  }
+
+  boolean isEmpty() {
+    return _previous.isEmpty();
+  }
+
+  /* Estimated size of a course in rows. */
+  long estimate( String courseId )
+  {
+    Long rows = _previous.get( courseId );
+    return (null == rows) ? _average : rows;
+  }
+
+  /* Records the size of a course fetched in this run. */
+  void record( String courseId, long rows )
+  {
+    _measured.put( courseId, rows );
+  }
+
+  /* Saves the estimates, including courses that weren't part of this run. */
+  void save() throws IOException
+  {
+    Properties props = new Properties();
+    for ( Map.Entry<String, Long> entry : _previous.entrySet() ) {
+      props.setProperty( entry.getKey(), String.valueOf( entry.getValue() ) );
+    }
+    for ( Map.Entry<String, Long> entry : _measured.entrySet() ) {
+      Long previous = _previous.get( entry.getKey() );
+      long rows = (null == previous) ? entry.getValue() : (previous + entry.getValue()) / 2;
+      props.setProperty( entry.getKey(), String.valueOf( rows ) );
+    }
+
+    // Write alongside and rename, so a failed save leaves the old estimates.
+    File tmpFile = new File( _file.getPath() + ".tmp" );
+    OutputStream os = null;
+    try {
+      os = new FileOutputStream( tmpFile );
+      os.write( VERSION.getBytes( "ISO-8859-1" ) );
+      props.store( os, null );
+    }
+    finally {
+      if( null != os ) { os.close(); }
+    }
+    _file.delete();
+    if ( !tmpFile.renameTo( _file ) ) {
+      throw new IOException( "Failed to save course estimates to [" + _file + "]." );
+    }
+    _LOG.info( "Saved estimates for [" + props.size() + "] courses to [" + _file + "]." );
+  }
+}
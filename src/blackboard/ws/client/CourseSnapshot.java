@@ -0,0 +1,407 @@
+package blackboard.ws.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import blackboard.ws.coursemembership.CourseMembershipWSStub.CourseMembershipVO;
+import blackboard.ws.gradebook.GradebookWSStub.ColumnVO;
+import blackboard.ws.gradebook.GradebookWSStub.ScoreVO;
+import blackboard.ws.user.UserWSStub.UserVO;
+
+/**
+ * Compact copies of a course's web service responses, holding only the
+ * fields the report uses.  Each response is copied as soon as it is parsed
+ * and its VOs dropped, so a course in the pipeline no longer keeps the
+ * expansion data, comments, attempt ids and the rest of every VO alive, nor
+ * an object per user, membership and score.
+ *
+ * Each table is a struct of arrays: one array per field, indexed by the
+ * position of the entry in the response.  Null entries in a response are
+ * kept as entries with null ids, which never match anything in the join.
+ *
+ * Values that repeat across rows (grades, column models and types, ...) are
+ * shared through the run's {@link StringPool}, if there is one.  The string
+ * fields of the users, memberships and scores of a giant course can be moved
+ * off the heap response by response as they are loaded (see
+ * {@link OffHeapStore}).
+ */
+class CourseSnapshot
+{
+  private CourseSnapshot() {
+  }
+
+  private static String share( StringPool pool, String value ) {
+    return (null == pool) ? value : pool.share( value );
+  }
+
+  /* A string field of a table, for every entry: an array on the heap, or off it. */
+  abstract static class Strings
+  {
+    abstract String get( int ii );
+
+    abstract int size();
+
+    /* Copies the field into the array at the given offset. */
+    void copyTo( String[] values, int offset )
+    {
+      for ( int ii = 0; ii < size(); ii++ ) {
+        values[ offset + ii ] = get( ii );
+      }
+    }
+
+    String[] toArray()
+    {
+      String[] values = new String[ size() ];
+      copyTo( values, 0 );
+      return values;
+    }
+  }
+
+  static Strings onHeap( String[] values ) {
+    return new HeapStrings( values );
+  }
+
+  /*
+   * The field of several tables as one: copied into one array if every part
+   * is on heap, otherwise chained, so the parts moved off heap stay there.
+   */
+  private static Strings concat( List<Strings> parts, int count )
+  {
+    List<Strings> chained = new ArrayList<Strings>( parts.size() );
+    boolean onHeap = true;
+    for ( Strings part : parts ) {
+      onHeap &= (part instanceof HeapStrings);
+      if ( part.size() > 0 ) {
+        chained.add( part );
+      }
+    }
+    if ( onHeap ) {
+      String[] values = new String[ count ];
+      int offset = 0;
+      for ( Strings part : chained ) {
+        part.copyTo( values, offset );
+        offset += part.size();
+      }
+      return onHeap( values );
+    }
+    return new ChainedStrings( chained );
+  }
+
+  private static class HeapStrings extends Strings
+  {
+    private final String[] _values;
+
+    private HeapStrings( String[] values ) {
+      _values = values;
+    }
+
+    String get( int ii ) {
+      return _values[ ii ];
+    }
+
+    int size() {
+      return _values.length;
+    }
+
+    void copyTo( String[] values, int offset ) {
+      System.arraycopy( _values, 0, values, offset, _values.length );
+    }
+  }
+
+  /* Parts of a field one after the other, found by where each part starts. */
+  private static class ChainedStrings extends Strings
+  {
+    private final Strings[] _parts;
+    private final int[] _starts;
+    private final int _size;
+
+    private ChainedStrings( List<Strings> parts )
+    {
+      _parts = parts.toArray( new Strings[ parts.size() ] );
+      _starts = new int[ _parts.length ];
+      int size = 0;
+      for ( int pp = 0; pp < _parts.length; pp++ ) {
+        _starts[ pp ] = size;
+        size += _parts[ pp ].size();
+      }
+      _size = size;
+    }
+
+    String get( int ii )
+    {
+      int part = Arrays.binarySearch( _starts, ii );
+      if ( part < 0 ) {
+        part = -part - 2; // The part starting before it
+      }
+      return _parts[ part ].get( ii - _starts[ part ] );
+    }
+
+    int size() {
+      return _size;
+    }
+  }
+
+  /* A table whose string fields can be moved off heap. */
+  abstract static class Table
+  {
+    abstract void moveOffHeap( OffHeapStore store ) throws IOException;
+  }
+
+  /* The gradebook columns, in the order given (by position). */
+  static class Columns
+  {
+    final String[] _id;
+    final String[] _displayName;
+    final boolean[] _externalGrade;
+    final boolean[] _deleted;
+    final int[] _position;
+    final String[] _aggregationModel;
+    final String[] _calculationType;
+    final long[] _dueDate;
+    final int[] _multipleAttempts;
+    final double[] _possible;
+    final boolean[] _scorable;
+    final boolean[] _visible;
+
+    Columns( ColumnVO[] columns, StringPool pool )
+    {
+      int count = columns.length;
+      _id = new String[ count ];
+      _displayName = new String[ count ];
+      _externalGrade = new boolean[ count ];
+      _deleted = new boolean[ count ];
+      _position = new int[ count ];
+      _aggregationModel = new String[ count ];
+      _calculationType = new String[ count ];
+      _dueDate = new long[ count ];
+      _multipleAttempts = new int[ count ];
+      _possible = new double[ count ];
+      _scorable = new boolean[ count ];
+      _visible = new boolean[ count ];
+      for ( int ii = 0; ii < count; ii++ ) {
+        ColumnVO column = columns[ ii ];
+        if ( null == column ) {
+          continue;
+        }
+        _id[ ii ] = column.getId();
+        _displayName[ ii ] = share( pool, column.getColumnDisplayName() );
+        _externalGrade[ ii ] = column.getExternalGrade();
+        _deleted[ ii ] = column.getDeleted();
+        _position[ ii ] = column.getPosition();
+        _aggregationModel[ ii ] = share( pool, column.getAggregationModel() );
+        _calculationType[ ii ] = share( pool, column.getCalculationType() );
+        _dueDate[ ii ] = column.getDueDate();
+        _multipleAttempts[ ii ] = column.getMultipleAttempts();
+        _possible[ ii ] = column.getPossible();
+        _scorable[ ii ] = column.getScorable();
+        _visible[ ii ] = column.getVisible();
+      }
+    }
+
+    int size() {
+      return _id.length;
+    }
+  }
+
+  /* The users of the course, in the order given (by username). */
+  static class Users extends Table
+  {
+    // Replaced when moved off heap.
+    Strings _id;
+    Strings _name;
+    Strings _batchUid;
+    final boolean[] _available;
+    Strings _studentId;
+
+    Users( UserVO[] users )
+    {
+      int count = users.length;
+      String[] id = new String[ count ];
+      String[] name = new String[ count ];
+      String[] batchUid = new String[ count ];
+      _available = new boolean[ count ];
+      String[] studentId = new String[ count ];
+      for ( int ii = 0; ii < count; ii++ ) {
+        UserVO user = users[ ii ];
+        if ( null == user ) {
+          continue;
+        }
+        id[ ii ] = user.getId();
+        name[ ii ] = user.getName();
+        batchUid[ ii ] = user.getUserBatchUid();
+        _available[ ii ] = user.getIsAvailable();
+        studentId[ ii ] = user.getStudentId();
+      }
+      _id = onHeap( id );
+      _name = onHeap( name );
+      _batchUid = onHeap( batchUid );
+      _studentId = onHeap( studentId );
+    }
+
+    int size() {
+      return _available.length;
+    }
+
+    void moveOffHeap( OffHeapStore store ) throws IOException
+    {
+      _id = store.copy( _id );
+      _name = store.copy( _name );
+      _batchUid = store.copy( _batchUid );
+      _studentId = store.copy( _studentId );
+    }
+  }
+
+  /* The student memberships of the course. */
+  static class Members extends Table
+  {
+    // Replaced when moved off heap.
+    Strings _id;
+    Strings _userId;
+    final boolean[] _available;
+    final long[] _enrollmentDate;
+
+    Members( CourseMembershipVO[] members )
+    {
+      int count = members.length;
+      String[] id = new String[ count ];
+      String[] userId = new String[ count ];
+      _available = new boolean[ count ];
+      _enrollmentDate = new long[ count ];
+      for ( int ii = 0; ii < count; ii++ ) {
+        CourseMembershipVO member = members[ ii ];
+        if ( null == member ) {
+          continue;
+        }
+        id[ ii ] = member.getId();
+        userId[ ii ] = member.getUserId();
+        _available[ ii ] = member.getAvailable();
+        _enrollmentDate[ ii ] = member.getEnrollmentDate();
+      }
+      _id = onHeap( id );
+      _userId = onHeap( userId );
+    }
+
+    int size() {
+      return _available.length;
+    }
+
+    void moveOffHeap( OffHeapStore store ) throws IOException
+    {
+      _id = store.copy( _id );
+      _userId = store.copy( _userId );
+    }
+  }
+
+  /* The scores of the course, by column and membership. */
+  static class Scores extends Table
+  {
+    // Replaced when moved off heap.
+    Strings _columnId;
+    Strings _memberId;
+    Strings _id;
+    Strings _schemaGradeValue;
+    Strings _grade;
+    Strings _manualGrade;
+    final double[] _manualScore;
+    final int[] _status;
+
+    Scores( ScoreVO[] scores, StringPool pool )
+    {
+      int count = scores.length;
+      String[] columnIds = new String[ count ];
+      String[] memberId = new String[ count ];
+      String[] id = new String[ count ];
+      String[] schemaGradeValue = new String[ count ];
+      String[] grade = new String[ count ];
+      String[] manualGrade = new String[ count ];
+      _manualScore = new double[ count ];
+      _status = new int[ count ];
+      String columnId = null;
+      for ( int ii = 0; ii < count; ii++ ) {
+        ScoreVO score = scores[ ii ];
+        if ( null == score ) {
+          continue;
+        }
+        // The scores of a column usually come together, so they can share
+        // the columnId of the one before without going through the pool.
+        if ( (null == columnId) || !columnId.equals( score.getColumnId() ) ) {
+          columnId = score.getColumnId();
+        }
+        columnIds[ ii ] = columnId;
+        memberId[ ii ] = score.getMemberId();
+        id[ ii ] = score.getId();
+        schemaGradeValue[ ii ] = share( pool, score.getSchemaGradeValue() );
+        grade[ ii ] = share( pool, score.getGrade() );
+        manualGrade[ ii ] = share( pool, score.getManualGrade() );
+        _manualScore[ ii ] = score.getManualScore();
+        _status[ ii ] = score.getStatus();
+      }
+      _columnId = onHeap( columnIds );
+      _memberId = onHeap( memberId );
+      _id = onHeap( id );
+      _schemaGradeValue = onHeap( schemaGradeValue );
+      _grade = onHeap( grade );
+      _manualGrade = onHeap( manualGrade );
+    }
+
+    private Scores( int count )
+    {
+      _manualScore = new double[ count ];
+      _status = new int[ count ];
+    }
+
+    /*
+     * The scores of several responses (e.g. one per column) as one table, in
+     * the order given.  Parts already moved off heap are kept where they are.
+     */
+    static Scores concat( List<Scores> parts )
+    {
+      int count = 0;
+      for ( Scores part : parts ) {
+        count += part.size();
+      }
+      Scores scores = new Scores( count );
+      List<Strings> columnId = new ArrayList<Strings>( parts.size() );
+      List<Strings> memberId = new ArrayList<Strings>( parts.size() );
+      List<Strings> id = new ArrayList<Strings>( parts.size() );
+      List<Strings> schemaGradeValue = new ArrayList<Strings>( parts.size() );
+      List<Strings> grade = new ArrayList<Strings>( parts.size() );
+      List<Strings> manualGrade = new ArrayList<Strings>( parts.size() );
+      int offset = 0;
+      for ( Scores part : parts ) {
+        columnId.add( part._columnId );
+        memberId.add( part._memberId );
+        id.add( part._id );
+        schemaGradeValue.add( part._schemaGradeValue );
+        grade.add( part._grade );
+        manualGrade.add( part._manualGrade );
+        System.arraycopy( part._manualScore, 0, scores._manualScore, offset, part.size() );
+        System.arraycopy( part._status, 0, scores._status, offset, part.size() );
+        offset += part.size();
+      }
+      scores._columnId = CourseSnapshot.concat( columnId, count );
+      scores._memberId = CourseSnapshot.concat( memberId, count );
+      scores._id = CourseSnapshot.concat( id, count );
+      scores._schemaGradeValue = CourseSnapshot.concat( schemaGradeValue, count );
+      scores._grade = CourseSnapshot.concat( grade, count );
+      scores._manualGrade = CourseSnapshot.concat( manualGrade, count );
+      return scores;
+    }
+
+    int size() {
+      return _status.length;
+    }
+
+    void moveOffHeap( OffHeapStore store ) throws IOException
+    {
+      _columnId = store.copy( _columnId );
+      _memberId = store.copy( _memberId );
+      _id = store.copy( _id );
+      _schemaGradeValue = store.copy( _schemaGradeValue );
+      _grade = store.copy( _grade );
+      _manualGrade = store.copy( _manualGrade );
+    }
+  }
+}
@@ -2,12 +2,16 @@
 package blackboard.ws.client;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.rmi.RemoteException;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
 
 import blackboard.ws.course.CourseWSStub.CourseVO;
-import blackboard.ws.coursemembership.CourseMembershipWSStub.CourseMembershipVO;
 import blackboard.ws.gradebook.GradebookWSStub.ColumnVO;
 import blackboard.ws.gradebook.GradebookWSStub.ScoreVO;
 import blackboard.ws.user.UserWSStub.UserVO;
@@ -17,6 +21,9 @@ public class GradeExtractApp
   private static final org.apache.commons.logging.Log _LOG = //
     org.apache.commons.logging.LogFactory.getLog( GradeExtractApp.class );
 
+  // How often to look for courses again when everything left is claimed elsewhere.
+  private static final long LEASE_POLL_MILLIS = 5000;
+
   private final Properties _appConfig;
   
   private final String _delimiter;
@@ -24,11 +31,119 @@ public class GradeExtractApp
   private final int _maxCourses;
   private final int _wsClientBatchSize;
   private final int _wsClientBatchDelay;
+  private final int _wsPoolSize;
+  private final long _wsSessionRenewMillis;
+  private final long _wsLeaseTimeoutMillis;
+  private final boolean _adaptiveThrottle;
+  private final int _throttleMinCalls;
+  private final int _throttleInitialCalls;
+  private final int _throttleMaxCalls;
+  private final int _maxCallsInFlight;
   private final int _batchWaitSize;
   private final int _batchWaitDelay;
   private final boolean _externalGradeOnly;
+  private final int _parallelCourses;
+  private final boolean _concurrentFetch;
+  private final boolean _virtualThreads;
+  private final int _virtualCourses;
+  private final boolean _largestFirst;
+  private final long _columnScoresThreshold;
+  private final int _columnScoresParallel;
+  private final int _scoreMemberChunkSize;
+  private final boolean _rowTemplates;
+  private final boolean _wideFormat;
+  private final int[] _wideGradeFields; // Which GRADE_FIELDS each column has in the wide format
+  private final boolean _sparseOutput;
+  private final boolean _sparseRoster;
+  private final long _offHeapThreshold;
+  private final int _fetchQueueDepth;
+  private final int _joinQueueDepth;
+  private final int _writeQueueDepth;
+
+  // Shared by the course workers, so all access must be synchronized.
+  private List<String> _errors = Collections.synchronizedList( new ArrayList<String>() );
+
+  // Logged-in clients leased to the course workers, renewed in the background.
+  private WebServiceClientPool _clientPool;
+
+  // The fetch workers and the stages after them, aborted as a whole if any
+  // of them fails.
+  private Pipeline _pipeline;
+
+  // Runs the loads of a course that go on alongside its worker, i.e. the
+  // concurrent loads and the column by column scores.
+  private ExecutorService _fetchExecutor;
+
+  // Limits the web service calls of all clients, null if not adaptive.
+  private AdaptiveThrottle _throttle;
+
+  // Caps the web service calls of all clients, null if not capped.
+  private CallLimiter _callLimiter;
+
+  // Reports virtual threads pinned to their carrier, null if not running on
+  // virtual threads.
+  private PinningMonitor _pinningMonitor;
+
+  // Sizes of the courses, null if not scheduling largest first.
+  private CourseEstimates _estimates;
+
+  // One copy of each repeated value for the whole run, null if not sharing them.
+  private final StringPool _stringPool;
+
+  // Where giant courses are kept while in the pipeline, null if always on heap.
+  private final OffHeapStore _offHeapStore;
+
+  // Shared with the other processes working on the run, null if working alone.
+  private LeaseDirectory _leases;
+
+  // Where this host's courses go when its report is part of a combined one
+  // (written without a header), null if it has a report of its own.
+  private File _partFile;
+
+  // How report files are written: the size of their buffer, and when they are forced to disk.
+  private final int _outputBufferSize;
+  private final String _outputSync;
+
+  // The report file being written, null when writing to STDOUT.
+  private ChannelOutputStream _reportOut;
+
+  // Whether the final report is gzipped as it is written, in blocks of what
+  // size and on how many threads.
+  private final boolean _compressOutput;
+  private final int _compressBlockSize;
+  private final int _compressThreads;
 
-  private List<String> _errors = new ArrayList<String>();
+  // The compressor in front of the report, null if it isn't compressed.
+  private ParallelGzipOutputStream _compressedOut;
+
+  // Where each course is written before the report is assembled, null to
+  // write the courses straight to the report.
+  private SegmentDirectory _segments;
+
+  // Where the rows are exported in columnar form alongside the report, null
+  // if they aren't, and how many rows make up a row group.
+  private File _columnarFile;
+  private final int _columnarRowGroupRows;
+  private ColumnarWriter _columnar;
+
+  // The courses claimed through the lease directory, by sequence, until they are committed.
+  private final Map<Integer, CourseVO> _leasedCourses = new ConcurrentHashMap<Integer, CourseVO>();
+
+  // Where the writer is in this process's report.
+  private long _reportOffset;
+
+  // Set by the writer once this process's report has failed, after which
+  // every course would fail too, so no more are claimed.
+  private volatile boolean _reportFailed = false;
+
+  // Where the next chunk held back goes in the spill file, only touched by the writer.
+  private long _spillEnd;
+
+  // Throughput of each stage of the extract pipeline.
+  private final StageStats _fetchStats = new StageStats( "fetch", "courses" );
+  private final StageStats _joinStats = new StageStats( "join", "courses" );
+  private final StageStats _formatStats = new StageStats( "format", "rows" );
+  private final StageStats _writeStats = new StageStats( "write", "bytes" );
 
   private GradeExtractApp( Properties appConfig )
   {
@@ -44,6 +159,93 @@ public class GradeExtractApp
     _batchWaitSize = Integer.parseInt( appConfig.getProperty( "app.batchWaitSize", String.valueOf( Integer.MAX_VALUE ) ).trim() );
     _batchWaitDelay = Integer.parseInt( appConfig.getProperty( "app.batchWaitDelay", String.valueOf( Integer.MAX_VALUE ) ).trim() );
     _externalGradeOnly = Boolean.valueOf( appConfig.getProperty( "app.filterOnExternalGrade", "false" ) );
+    _parallelCourses = Math.max( 1, Integer.parseInt( appConfig.getProperty( "app.parallelCourses", "1" ).trim() ) );
+    _concurrentFetch = Boolean.valueOf( appConfig.getProperty( "app.concurrentFetch", "false" ).trim() );
+    boolean virtualThreads = Boolean.valueOf( appConfig.getProperty( "app.virtualThreads", "false" ).trim() );
+    if ( virtualThreads && (null == virtualThreadFactory()) ) {
+      String message = "Virtual threads are not available on this JDK, running [" + _parallelCourses + "] platform threads instead.";
+      _errors.add( message );
+      _LOG.warn( message );
+      virtualThreads = false;
+    }
+    _virtualThreads = virtualThreads;
+    _virtualCourses = Math.max( 1, Integer.parseInt( appConfig.getProperty( "app.virtualCourses", "16" ).trim() ) );
+    _largestFirst = Boolean.valueOf( appConfig.getProperty( "app.scheduleLargestFirst", "false" ).trim() );
+    _columnScoresThreshold = Long.parseLong( appConfig.getProperty( "app.columnScoresThreshold", "-1" ).trim() );
+    _columnScoresParallel = Math.max( 1, Integer.parseInt( appConfig.getProperty( "app.columnScoresParallel", "4" ).trim() ) );
+    _scoreMemberChunkSize = Integer.parseInt( appConfig.getProperty( "app.scoreMemberChunkSize", "-1" ).trim() );
+    // Each course being fetched holds a client, so the pool is as large as the courses fetched at once.
+    _wsPoolSize = Math.max( 1, Integer.parseInt( appConfig.getProperty( "app.wsPoolSize", String.valueOf( _virtualThreads ? _virtualCourses : _parallelCourses ) ).trim() ) );
+    // By default renew sessions when 80% of their expected life has passed.
+    long expectedLifeSeconds = Long.parseLong( appConfig.getProperty( "ws.expectedLifeSeconds", "-1" ).trim() );
+    _wsSessionRenewMillis = 1000L * Long.parseLong( appConfig.getProperty( "app.wsSessionRenewSeconds", String.valueOf( expectedLifeSeconds * 8 / 10 ) ).trim() );
+    _wsLeaseTimeoutMillis = Long.parseLong( appConfig.getProperty( "app.wsLeaseTimeoutMillis", "600000" ).trim() );
+    _adaptiveThrottle = Boolean.valueOf( appConfig.getProperty( "app.adaptiveThrottle", "false" ).trim() );
+    _throttleMinCalls = Integer.parseInt( appConfig.getProperty( "app.throttleMinCalls", "1" ).trim() );
+    _throttleMaxCalls = Integer.parseInt( appConfig.getProperty( "app.throttleMaxCalls", String.valueOf( 2 * _wsPoolSize ) ).trim() );
+    _throttleInitialCalls = Integer.parseInt( appConfig.getProperty( "app.throttleInitialCalls", String.valueOf( _throttleMinCalls ) ).trim() );
+    // Without a thread pool to bound them, calls on virtual threads are capped by default.
+    _maxCallsInFlight = Integer.parseInt( appConfig.getProperty( "app.maxCallsInFlight", String.valueOf( _virtualThreads ? 2 * _wsPoolSize : -1 ) ).trim() );
+    _fetchQueueDepth = Math.max( 1, Integer.parseInt( appConfig.getProperty( "app.fetchQueueDepth", String.valueOf( _parallelCourses ) ).trim() ) );
+    _joinQueueDepth = Math.max( 1, Integer.parseInt( appConfig.getProperty( "app.joinQueueDepth", "2" ).trim() ) );
+    _writeQueueDepth = Math.max( 1, Integer.parseInt( appConfig.getProperty( "app.writeQueueDepth", "64" ).trim() ) );
+    int stringPoolSize = Integer.parseInt( appConfig.getProperty( "app.stringPoolSize", "65536" ).trim() );
+    _stringPool = (stringPoolSize > 0) ? new StringPool( stringPoolSize ) : null;
+    _rowTemplates = Boolean.valueOf( appConfig.getProperty( "app.rowTemplates", "true" ).trim() );
+    _wideFormat = "wide".equalsIgnoreCase( appConfig.getProperty( "app.reportFormat", "long" ).trim() );
+    _sparseOutput = Boolean.valueOf( appConfig.getProperty( "app.sparseOutput", "false" ).trim() );
+    _sparseRoster = _sparseOutput && Boolean.valueOf( appConfig.getProperty( "app.sparseRoster", "false" ).trim() );
+    if ( _sparseOutput && _wideFormat ) {
+      _LOG.warn( "Ignoring app.sparseOutput, the wide format has no row per grade to leave out." );
+    }
+    String[] wideGradeFields = appConfig.getProperty( "app.wideGradeFields", "GRADE" ).split( "," );
+    _wideGradeFields = new int[ wideGradeFields.length ];
+    for ( int ii = 0; ii < wideGradeFields.length; ii++ ) {
+      _wideGradeFields[ ii ] = Arrays.asList( GRADE_FIELDS ).indexOf( wideGradeFields[ ii ].trim().toUpperCase() );
+      if ( _wideGradeFields[ ii ] < 0 ) {
+        throw new IllegalArgumentException( "Unknown grade field [" + wideGradeFields[ ii ].trim() + "] in app.wideGradeFields, use any of " + Arrays.asList( GRADE_FIELDS ) + "." );
+      }
+    }
+    _offHeapThreshold = Long.parseLong( appConfig.getProperty( "app.offHeapThreshold", "-1" ).trim() );
+    String offHeapDir = appConfig.getProperty( "app.offHeapDir", "" ).trim();
+    _offHeapStore = (_offHeapThreshold > 0) ? new OffHeapStore( (offHeapDir.length() > 0) ? new File( offHeapDir ) : null ) : null;
+    _outputBufferSize = 1024 * Integer.parseInt( appConfig.getProperty( "app.outputBufferKB", "1024" ).trim() );
+    _outputSync = ChannelOutputStream.checkSync( appConfig.getProperty( "app.outputSync", ChannelOutputStream.SYNC_NONE ) );
+    _compressOutput = Boolean.valueOf( appConfig.getProperty( "app.compressOutput", "false" ).trim() );
+    _compressBlockSize = 1024 * Integer.parseInt( appConfig.getProperty( "app.compressBlockKB", "1024" ).trim() );
+    _compressThreads = Integer.parseInt( appConfig.getProperty( "app.compressThreads", String.valueOf( Runtime.getRuntime().availableProcessors() ) ).trim() );
+
+    String leaseDir = appConfig.getProperty( "app.leaseDir", "" ).trim();
+    if ( leaseDir.length() > 0 ) {
+      String workerId = appConfig.getProperty( "app.workerId", "" ).trim();
+      if ( workerId.length() == 0 ) {
+        workerId = ManagementFactory.getRuntimeMXBean().getName(); // pid@host
+      }
+      long renewMillis = 1000L * Long.parseLong( appConfig.getProperty( "app.leaseRenewSeconds", "30" ).trim() );
+      long expireMillis = 1000L * Long.parseLong( appConfig.getProperty( "app.leaseExpireSeconds", "120" ).trim() );
+      _leases = new LeaseDirectory( new File( leaseDir ), workerId, renewMillis, expireMillis );
+    }
+
+    String columnarFile = appConfig.getProperty( "app.columnarFile", "" ).trim();
+    _columnarRowGroupRows = Integer.parseInt( appConfig.getProperty( "app.columnarRowGroupRows", "65536" ).trim() );
+    if ( columnarFile.length() > 0 ) {
+      if ( null != _leases ) {
+        _LOG.warn( "Ignoring app.columnarFile, a worker in a lease directory only has part of the rows." );
+      }
+      else {
+        _columnarFile = new File( columnarFile );
+      }
+    }
+
+    String segmentDir = appConfig.getProperty( "app.segmentDir", "" ).trim();
+    if ( segmentDir.length() > 0 ) {
+      if ( null != _leases ) {
+        _LOG.warn( "Ignoring app.segmentDir, the courses are already written to the lease directory." );
+      }
+      else {
+        _segments = new SegmentDirectory( new File( segmentDir ), _outputSync );
+      }
+    }
   }
 
   private String getOutputLocation() {
@@ -54,6 +256,15 @@ public class GradeExtractApp
     return "stdout".equalsIgnoreCase( getOutputLocation() );
   }
 
+  /* Where the course estimates are kept, by default next to the report.  Null if nowhere. */
+  private File getEstimatesFile() {
+    String location = _appConfig.getProperty( "app.courseEstimatesFile", "" ).trim();
+    if ( location.length() > 0 ) {
+      return new File( location );
+    }
+    return isStdOut() ? null : new File( getOutputLocation() + ".estimates" );
+  }
+
   /**
    * Sample gradebook extract that uses only the Blackboard Learn web services
    * to extract data.  All of the invocations are done via the sample client
@@ -101,29 +312,224 @@ public class GradeExtractApp
     Date start = Calendar.getInstance().getTime();
     _LOG.info( "EXTRACT STARTED : " + start );
 
-    GradeExtractApp app = new GradeExtractApp( appConfig );
-    try {
-      app.doMain();
+    List<String> errors;
+    String hostNames = appConfig.getProperty( "app.hosts", "" ).trim();
+    if ( hostNames.length() > 0 ) {
+      errors = extractHosts( appConfig, hostNames.split( "," ) );
     }
-    catch( Exception e ) {
-      app._errors.add( e.getMessage() );
-      _LOG.error( e.getMessage(), e );
+    else {
+      GradeExtractApp app = new GradeExtractApp( appConfig );
+      try {
+        app.doMain();
+      }
+      catch( Exception e ) {
+        app._errors.add( e.getMessage() );
+        _LOG.error( e.getMessage(), e );
+      }
+      errors = app._errors;
     }
 
     _LOG.info( "EXTRACT START TIME: " + start );
     _LOG.info( "EXTRACT COMPLETED : " + Calendar.getInstance().getTime() );
-    if ( !app._errors.isEmpty() ) {
-      _LOG.error( "ERRORS(" + app._errors.size() + "):" );
-      for ( String message : app._errors ) {
+    if ( !errors.isEmpty() ) {
+      _LOG.error( "ERRORS(" + errors.size() + "):" );
+      for ( String message : errors ) {
         _LOG.error( " - " + message );
       }
     }
   }
 
+  /*
+   * Extracts from several Learn hosts at once, each on its own thread with its
+   * own client pool and call limits, so the run takes as long as the slowest
+   * host rather than all of them one after the other.  Each host writes its
+   * own report, or its part of one combined report.  Returns the errors of
+   * all the hosts, each prefixed with its host.
+   */
+  private static List<String> extractHosts( Properties appConfig, String[] hostNames )
+  {
+    String outputLocation = appConfig.getProperty( "app.outputFile", "STDOUT" ).trim();
+    boolean stdOut = "stdout".equalsIgnoreCase( outputLocation );
+    // The hosts can't share STDOUT as they go, so they are combined.
+    boolean combined = stdOut || "combined".equalsIgnoreCase( appConfig.getProperty( "app.hostOutput", "separate" ).trim() );
+
+    List<String> errors = new ArrayList<String>();
+    final Map<String, GradeExtractApp> apps = new LinkedHashMap<String, GradeExtractApp>();
+    for ( String hostName : hostNames ) {
+      String name = hostName.trim();
+      if ( name.length() == 0 ) {
+        continue;
+      }
+      Properties hostConfig = getHostConfig( appConfig, name, combined ? null : hostLocation( outputLocation, name ) );
+      if ( combined && !stdOut && !hostConfig.containsKey( "app.courseEstimatesFile" ) ) {
+        hostConfig.put( "app.courseEstimatesFile", hostLocation( outputLocation, name ) + ".estimates" );
+      }
+      String columnarFile = appConfig.getProperty( "app.columnarFile", "" ).trim();
+      if ( (columnarFile.length() > 0) && columnarFile.equals( hostConfig.getProperty( "app.columnarFile" ).trim() ) ) {
+        hostConfig.put( "app.columnarFile", hostLocation( columnarFile, name ) );
+      }
+      // Course PKs are only unique within a host.
+      String segmentDir = appConfig.getProperty( "app.segmentDir", "" ).trim();
+      if ( (segmentDir.length() > 0) && segmentDir.equals( hostConfig.getProperty( "app.segmentDir" ).trim() ) ) {
+        hostConfig.put( "app.segmentDir", new File( segmentDir, name ).getPath() );
+      }
+      GradeExtractApp app = new GradeExtractApp( hostConfig );
+      if ( combined ) {
+        try {
+          app._partFile = stdOut ? File.createTempFile( "gradeextract-" + name, ".part" ) : new File( outputLocation + "." + name + ".part" );
+        }
+        catch( IOException e ) {
+          errors.add( "[" + name + "] " + e.getMessage() );
+          _LOG.error( e.getMessage(), e );
+          continue;
+        }
+      }
+      apps.put( name, app );
+      _LOG.info( "Extracting host [" + name + "] (" + hostConfig.getProperty( "ws.hostname" ) + ")"
+                 + (combined ? " into the combined report." : " into [" + hostConfig.getProperty( "app.outputFile" ) + "].") );
+    }
+
+    ExecutorService hosts = Executors.newFixedThreadPool( Math.max( 1, apps.size() ) );
+    for ( final Map.Entry<String, GradeExtractApp> entry : apps.entrySet() ) {
+      hosts.submit( new Runnable() {
+        public void run() {
+          Thread.currentThread().setName( "host-" + entry.getKey() );
+          long start = System.currentTimeMillis();
+          try {
+            entry.getValue().doMain();
+          }
+          catch( Exception e ) {
+            entry.getValue()._errors.add( e.getMessage() );
+            _LOG.error( e.getMessage(), e );
+          }
+          _LOG.info( "Host [" + entry.getKey() + "] finished in [" + ((System.currentTimeMillis() - start) / 1000) + "] seconds." );
+        }
+      } );
+    }
+    hosts.shutdown();
+    try {
+      hosts.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+    }
+    catch( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      errors.add( e.getMessage() );
+      _LOG.error( e.getMessage(), e );
+    }
+
+    if ( combined && !apps.isEmpty() ) {
+      try {
+        combineReports( apps, outputLocation );
+      }
+      catch( IOException e ) {
+        errors.add( e.getMessage() );
+        _LOG.error( e.getMessage(), e );
+      }
+    }
+
+    for ( Map.Entry<String, GradeExtractApp> entry : apps.entrySet() ) {
+      for ( String message : entry.getValue()._errors ) {
+        errors.add( "[" + entry.getKey() + "] " + message );
+      }
+    }
+    return errors;
+  }
+
+  /* The configuration of one host: the shared properties, overridden by any
+     prefixed with the host's name (e.g. east.ws.hostname).  Unless the host
+     names its own, its report goes to the given location. */
+  private static Properties getHostConfig( Properties appConfig, String name, String outputLocation )
+  {
+    Properties hostConfig = new Properties();
+    String prefix = name + ".";
+    for ( String key : appConfig.stringPropertyNames() ) {
+      if ( !key.startsWith( prefix ) ) {
+        hostConfig.put( key, appConfig.getProperty( key ) );
+      }
+    }
+    if ( null != outputLocation ) {
+      hostConfig.put( "app.outputFile", outputLocation );
+    }
+    for ( String key : appConfig.stringPropertyNames() ) {
+      if ( key.startsWith( prefix ) ) {
+        hostConfig.put( key.substring( prefix.length() ), appConfig.getProperty( key ) );
+      }
+    }
+    return hostConfig;
+  }
+
+  /* The report location with the host's name before the extension, e.g. grades.east.csv. */
+  private static String hostLocation( String outputLocation, String name )
+  {
+    int dot = outputLocation.lastIndexOf( '.' );
+    if ( (dot < 0) || (dot < outputLocation.lastIndexOf( File.separatorChar )) ) {
+      return outputLocation + "." + name;
+    }
+    return outputLocation.substring( 0, dot ) + "." + name + outputLocation.substring( dot );
+  }
+
+  /* Writes the combined report: one header, then the courses of each host in
+     the order the hosts are listed. */
+  private static void combineReports( Map<String, GradeExtractApp> apps, String outputLocation ) throws IOException
+  {
+    GradeExtractApp first = apps.values().iterator().next();
+    byte[] header = first.getHeaderBytes();
+    boolean stdOut = "stdout".equalsIgnoreCase( outputLocation );
+    File outFile = null;
+    File tmpFile = null;
+    OutputStream out;
+    if ( stdOut ) {
+      out = stdOutStream();
+    }
+    else {
+      outFile = new File( outputLocation );
+      File outLocFileParent = outFile.getAbsoluteFile().getParentFile();
+      outLocFileParent.mkdirs();
+      tmpFile = File.createTempFile( outFile.getName(), ".tmp", outLocFileParent );
+      out = new ChannelOutputStream( tmpFile, false, first._outputBufferSize, first._outputSync );
+    }
+    out = first.compress( out );
+
+    try {
+      out.write( header );
+      WritableByteChannel report = reportChannel( out );
+      for ( Map.Entry<String, GradeExtractApp> entry : apps.entrySet() ) {
+        File part = entry.getValue()._partFile;
+        if ( !part.exists() ) {
+          continue; // The host failed before writing anything, already reported.
+        }
+        FileChannel source = new FileInputStream( part ).getChannel();
+        try {
+          long size = source.size();
+          for ( long copied = 0; copied < size; ) {
+            long count = source.transferTo( copied, size - copied, report );
+            if ( count <= 0 ) {
+              throw new IOException( "Host report [" + part + "] ended at " + copied + " of its " + size + " bytes." );
+            }
+            copied += count;
+          }
+        }
+        finally {
+          source.close();
+        }
+      }
+    }
+    finally {
+      closeFinalReport( out );
+      for ( GradeExtractApp app : apps.values() ) {
+        app._partFile.delete();
+      }
+    }
+
+    if ( null != outFile ) {
+      ChannelOutputStream.moveIntoPlace( tmpFile, outFile );
+      _LOG.info( "Combined report of [" + apps.size() + "] hosts written to [" + outFile + "]." );
+    }
+  }
+
   private void doMain() throws IOException, RemoteException
   {
     // Get a new instance of a web service client and initialize it.
-    WebServiceClient wsClient = newWebServiceClient( null );
+    WebServiceClient wsClient = newWebServiceClient();
 
     // Load the courses
     final CourseVO[] courses;
@@ -137,6 +543,13 @@ public class GradeExtractApp
       courses = wsClient.getCoursesBySearch( "CourseId", "Contains", _courseIdContains );
     }
     _LOG.info( "Total number of courses: " + courses.length );
+    if ( null != _stringPool ) {
+      for ( CourseVO course : courses ) {
+        if ( null != course ) {
+          course.setCourseServiceLevel( _stringPool.share( course.getCourseServiceLevel() ) );
+        }
+      }
+    }
 
     // Sort by courseId (ascending) for report comparison
     Arrays.sort( courses, new Comparator<CourseVO>() {
@@ -148,26 +561,131 @@ public class GradeExtractApp
     PrintStream dataOut = null;
     File tmpFile = null;
     File outFile = null;
+    File spillFile = null;
+    RandomAccessFile spill = null;
+    boolean assembling = false; // Until the report is assembled from the segments
+    File columnarTmpFile = null;
+    ExecutorService workers = null;
     try {
-      // Set the output, either a file or System.out.
-      if ( isStdOut() ) {
+      // Set the output, either a file or System.out.  Working with other
+      // processes, this one writes the courses it claims to its own report
+      // in the lease directory, and the final report is merged from them
+      // once every course is done.
+      if ( null != _leases ) {
+        _leases.start();
+        File workerFile = _leases.getReportFile();
+        _reportOffset = workerFile.length();
+        _reportOut = new ChannelOutputStream( workerFile, true, _outputBufferSize, _outputSync );
+        dataOut = new PrintStream( _reportOut );
+        _LOG.info( "Working on the run in lease directory [" + _appConfig.getProperty( "app.leaseDir" ).trim() + "] as worker [" + _leases.getWorkerId() + "]." );
+      }
+      else if ( null != _partFile ) {
+        // Part of a combined report, the header is written once for all the hosts.
+        _reportOut = new ChannelOutputStream( _partFile, false, _outputBufferSize, _outputSync );
+        dataOut = new PrintStream( _reportOut );
+      }
+      else if ( isStdOut() ) {
         dataOut = System.out;
       }
       else {
         // Create a temporary file based on the target file.  We will write to
-        // temporary file during execution then rename to the target file when
-        // the process is complete.
+        // temporary file during execution then move it over the target file
+        // (and the previous report) when the process is complete.
         outFile = new File( getOutputLocation() );
-        outFile.delete(); // DELETE EXISTING (OLD) REPORT
-        File outLocFileParent = outFile.getParentFile();
+        File outLocFileParent = outFile.getAbsoluteFile().getParentFile();
         outLocFileParent.mkdirs();
         tmpFile = File.createTempFile( outFile.getName(), ".tmp", outLocFileParent );
-        dataOut = new PrintStream( new BufferedOutputStream( new FileOutputStream(tmpFile)) );
+        _reportOut = new ChannelOutputStream( tmpFile, false, _outputBufferSize, _outputSync );
+        dataOut = new PrintStream( _reportOut );
       }
 
-      printHeader( dataOut );
+      if ( null != _columnarFile ) {
+        File columnarParent = _columnarFile.getAbsoluteFile().getParentFile();
+        columnarParent.mkdirs();
+        columnarTmpFile = File.createTempFile( _columnarFile.getName(), ".tmp", columnarParent );
+        _columnar = new ColumnarWriter( new ChannelOutputStream( columnarTmpFile, false, _outputBufferSize, _outputSync ),
+                                        COLUMNAR_FIELDS, COLUMNAR_TYPES, _columnarRowGroupRows );
+        _LOG.info( "Exporting the rows in columnar form to [" + _columnarFile + "]." );
+      }
 
-      // Iterate through all of the courses.
+      // The report is compressed on its way out.  Worker reports and the
+      // parts of a combined report are compressed when they are merged.
+      if ( _compressOutput && (null == _leases) && (null == _partFile) ) {
+        if ( ChannelOutputStream.SYNC_COURSE.equals( _outputSync ) ) {
+          _LOG.warn( "A compressed report can't be synced per course, it will be synced when it is closed." );
+        }
+        _LOG.info( "Compressing the report in blocks of [" + (_compressBlockSize / 1024) + "] KB on [" + _compressThreads + "] threads." );
+        _compressedOut = new ParallelGzipOutputStream( (dataOut == System.out) ? stdOutStream() : _reportOut, _compressBlockSize, _compressThreads );
+        dataOut = new PrintStream( _compressedOut );
+      }
+
+      if ( (null == _leases) && (null == _partFile) ) {
+        printHeader( dataOut );
+      }
+
+      // Pool of logged-in clients for the workers.  The client used to load
+      // the courses is the first one, the others connect in the background.
+      // Failed reconnects are retried after the batch delay, which the pool
+      // keeps between a second and a minute as it defaults to forever.
+      if ( _adaptiveThrottle ) {
+        _LOG.info( "Adapting web service calls in flight between [" + _throttleMinCalls + "] and [" + _throttleMaxCalls + "] to server latency, starting at [" + _throttleInitialCalls + "]." );
+        _throttle = new AdaptiveThrottle( _throttleMinCalls, _throttleInitialCalls, _throttleMaxCalls );
+      }
+      WebServiceClient.CallMonitor callMonitor = _throttle;
+      if ( _maxCallsInFlight > 0 ) {
+        _LOG.info( "Capping web service calls in flight at [" + _maxCallsInFlight + "]." );
+        _callLimiter = new CallLimiter( _maxCallsInFlight, _throttle );
+        callMonitor = _callLimiter;
+      }
+      _clientPool = new WebServiceClientPool( _appConfig, _wsPoolSize, _wsClientBatchSize, _wsSessionRenewMillis,
+                                              _wsClientBatchDelay, _wsLeaseTimeoutMillis, callMonitor, _errors );
+      _clientPool.start( wsClient );
+      wsClient = null;
+
+      // The extract is a pipeline.  The workers fetch courses from the web
+      // services, then single threads join the fetched data into rows,
+      // format the rows and write them to the report, with a bounded queue
+      // between each stage.  While one course is being written the next
+      // ones are already being fetched.  The writer puts the courses back
+      // in courseId order, so the number of courses anywhere in the pipeline
+      // is capped to keep a slow course from piling finished ones up behind
+      // it.
+      int fetching = _parallelCourses;
+      if ( _virtualThreads ) {
+        // The courses and their loads each get a virtual thread, they are
+        // held back by the clients in the pool and the calls in flight
+        // rather than by a number of threads.
+        fetching = _virtualCourses;
+        workers = newVirtualThreadExecutor();
+        _fetchExecutor = newVirtualThreadExecutor();
+        _LOG.info( "Running the course workers on virtual threads, fetching up to [" + fetching + "] courses at once." );
+        _pinningMonitor = new PinningMonitor();
+        if ( !_pinningMonitor.start() ) {
+          _pinningMonitor = null;
+        }
+      }
+      else {
+        workers = Executors.newFixedThreadPool( _parallelCourses );
+        // Each course has at most two concurrent loads, or its columns in
+        // flight, besides its own worker.  Slices of a column beyond that
+        // wait for a thread.
+        _fetchExecutor = Executors.newFixedThreadPool( _parallelCourses * Math.max( 2, _columnScoresParallel ) );
+      }
+      _LOG.info( "Processing courses with [" + fetching + "] workers and queue depths fetch=" + _fetchQueueDepth + ", join=" + _joinQueueDepth + ", write=" + _writeQueueDepth + "." );
+      if ( _concurrentFetch ) {
+        _LOG.info( "Loading users, columns and grades of each course concurrently." );
+      }
+      final BlockingQueue<CourseData> fetchedQueue = new ArrayBlockingQueue<CourseData>( _fetchQueueDepth );
+      final BlockingQueue<CourseData> joinedQueue = new ArrayBlockingQueue<CourseData>( _joinQueueDepth );
+      final BlockingQueue<ReportChunk> writeQueue = new ArrayBlockingQueue<ReportChunk>( _writeQueueDepth );
+      final Semaphore coursesInFlight = new Semaphore( (2 * fetching) + _fetchQueueDepth + _joinQueueDepth );
+      final PrintStream reportOut = dataOut;
+      final long startMillis = System.currentTimeMillis();
+
+      // Number the courses in courseId order, the order they are written in
+      // whatever order they are fetched in.
+      List<CourseVO> toFetch = new ArrayList<CourseVO>();
+      List<Integer> indexes = new ArrayList<Integer>();
       for ( int ii = 0; ii < courses.length; ii++ )
       {
         if( ii == _maxCourses ) {
@@ -175,111 +693,917 @@ public class GradeExtractApp
           break;
         }
 
-        // Web service batch check.  If the batch size has been reached, then
-        // we logout of our current connection and open a new web service
-        // client.  This prevents timeout errors.
-        if ( (0 != ii) && (_wsClientBatchSize > 0) && (0 == (ii % _wsClientBatchSize)) ) {
-          _LOG.info( "Web service client batch size [" + _wsClientBatchSize + "] reached, getting new client after ["+_wsClientBatchDelay+"] millisecond sleep." );
-          quietSleep( _wsClientBatchDelay );
-          wsClient = newWebServiceClient( wsClient );
-        }
-
-        // Batch wait delay check.  If the batch wait size has been reached,
-        // then we pause for a specified amount of time to reduce impact on
-        // the server as web service calls (especially for grades) can be
-        // costly.
-        if ( (0 != ii) && (_batchWaitSize > 0) && (0 == (ii % _batchWaitSize )) ) {
-          _LOG.info( "Batch wait size [" + _batchWaitSize + "] reached, sleeping for [" + _batchWaitDelay + "] milliseconds before next batch." );
-          quietSleep( _batchWaitDelay );
-        }
-
-        final CourseVO course = courses[ii];
+        CourseVO course = courses[ii];
         if( null == course ) {
           String message = "Found null course in results[" + ii + "], this should not happen, skipping.";
           _errors.add( message );
           _LOG.warn(message);
           continue; // Can't do anything with this course.
         }
+        toFetch.add( course );
+        indexes.add( ii );
+      }
 
-        _LOG.info( "Course " + (ii+1) + ": " + course.getCourseId() );
-        try {
-          doCourse( course, wsClient, dataOut );
+      // Largest first, the courses finish out of courseId order, so the
+      // writer spills the ones that finish ahead of their turn to disk rather
+      // than holding them in memory (or holding up the courses behind them).
+      // With a lease directory the courses are numbered as they are claimed,
+      // so they finish in order as usual.
+      Integer[] order = scheduleCourses( toFetch );
+      if ( (null != _estimates) && (null == _leases) && (null == _segments) ) {
+        spillFile = File.createTempFile( "gradeextract", ".spill", (null == outFile) ? null : outFile.getParentFile() );
+        spill = new RandomAccessFile( spillFile, "rw" );
+      }
+      final RandomAccessFile writerSpill = spill;
+      final List<CourseVO> reportCourses = toFetch;
+      if ( null != _segments ) {
+        // The columnar file of the run that left the segments was deleted
+        // unfinished, so their courses have to be fetched to be exported.
+        _segments.start( getSegmentSettings(), null == _columnar );
+        _LOG.info( "Writing each course to its own segment in [" + _appConfig.getProperty( "app.segmentDir" ).trim() + "]." );
+      }
+
+      _pipeline = new Pipeline( 3, workers, coursesInFlight, fetchedQueue, joinedQueue, writeQueue );
+      _pipeline.start( "join", new Callable<Void>() {
+        public Void call() throws InterruptedException {
+          joinStage( fetchedQueue, joinedQueue );
+          return null;
         }
-        catch (Exception e ) {
-          String message = "Error processing course [" + course.getCourseId() + "]: " + e.getMessage();
-          _errors.add( message );
-          _LOG.error( message, e );
+      } );
+      _pipeline.start( "format", new Callable<Void>() {
+        public Void call() throws InterruptedException {
+          formatStage( joinedQueue, writeQueue );
+          return null;
+        }
+      } );
+      _pipeline.start( "write", new Callable<Void>() {
+        public Void call() throws InterruptedException {
+          if ( null != _segments ) {
+            segmentStage( writeQueue, coursesInFlight, reportCourses );
+          }
+          else {
+            writeStage( writeQueue, reportOut, coursesInFlight, writerSpill );
+          }
+          return null;
+        }
+      } );
+
+      // Iterate through all of the courses.
+      if ( null != _leases ) {
+        claimCourses( toFetch, indexes, order, workers, coursesInFlight, fetchedQueue );
+      }
+      else for ( int ii = 0, submitted = 0; ii < order.length; ii++ )
+      {
+        int sequence = order[ii];
+        if ( (null != _segments) && _segments.reuse( toFetch.get( sequence ).getId() ) ) {
+          continue; // Written by a previous run that didn't finish.
+        }
+        batchWait( submitted++ );
+
+        coursesInFlight.acquireUninterruptibly();
+        if ( !_pipeline.submit( newFetchTask( indexes.get( sequence ), sequence, toFetch.get( sequence ), fetchedQueue ) ) ) {
+          break; // Aborted, finish() has the failure.
         }
       } // end for courses
+
+      // Once every course is fetched, the end marker follows them down the
+      // pipeline and the writer finishes when it gets there.  If a stage
+      // failed instead, the pipeline is aborted and finish() rethrows it.
+      try {
+        _pipeline.awaitWorkers();
+        if ( !_pipeline.isAborted() ) {
+          fetchedQueue.put( CourseData.END );
+        }
+        _pipeline.finish();
+      }
+      catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException( "Interrupted while waiting for the extract to finish." );
+      }
+
+      if ( null != _leases ) {
+        closeReport( dataOut );
+        dataOut = null;
+        mergeReport();
+      }
+
+      if ( null != _segments ) {
+        assembling = true;
+        assembleReport( dataOut, reportCourses );
+        assembling = false;
+      }
+
+      if ( null != _columnar ) {
+        _columnar.close();
+        ChannelOutputStream.moveIntoPlace( columnarTmpFile, _columnarFile );
+        columnarTmpFile = null;
+        _LOG.info( _columnar.summary() );
+      }
+
+      if ( null != _estimates ) {
+        try {
+          _estimates.save();
+        }
+        catch( IOException e ) {
+          _errors.add( e.getMessage() );
+          _LOG.error( e.getMessage(), e );
+        }
+      }
+
+      long elapsedMillis = System.currentTimeMillis() - startMillis;
+      _LOG.info( _fetchStats.summary( elapsedMillis ) );
+      _LOG.info( _joinStats.summary( elapsedMillis ) );
+      _LOG.info( _formatStats.summary( elapsedMillis ) );
+      _LOG.info( _writeStats.summary( elapsedMillis ) );
+      if ( null != _throttle ) {
+        _LOG.info( _throttle.summary() );
+      }
+      if ( null != _callLimiter ) {
+        _LOG.info( _callLimiter.summary() );
+      }
+      if ( null != _pinningMonitor ) {
+        _pinningMonitor.stop();
+        _LOG.info( _pinningMonitor.summary() );
+      }
+      if ( null != _stringPool ) {
+        _LOG.info( _stringPool.summary() );
+      }
+      if ( null != _offHeapStore ) {
+        _LOG.info( _offHeapStore.summary() );
+      }
+      if ( null != _segments ) {
+        _LOG.info( _segments.summary() );
+      }
     }
     finally {
+      if ( null != workers ) {
+        workers.shutdownNow();
+      }
+      if ( null != _pipeline ) {
+        _pipeline.shutdownNow();
+      }
+      if ( null != _fetchExecutor ) {
+        _fetchExecutor.shutdownNow();
+      }
       if( (null != dataOut) && (dataOut != System.out) ) {
         _LOG.info("Closing report file stream.");
-        dataOut.close();
-        tmpFile.renameTo( outFile );
+        // A report that failed to assemble is left in its temporary file,
+        // the segments are kept for the next run.  So is the partial report
+        // of an aborted pipeline.
+        boolean aborted = (null != _pipeline) && _pipeline.isAborted();
+        if ( closeReport( dataOut ) && (null != tmpFile) && !assembling && !aborted ) {
+          try {
+            ChannelOutputStream.moveIntoPlace( tmpFile, outFile );
+          }
+          catch( IOException e ) {
+            String message = "Failed to move the report [" + tmpFile + "] to [" + outFile + "]: " + e;
+            _errors.add( message );
+            _LOG.error( message, e );
+          }
+        }
+      }
+      if( null != spill ) {
+        spill.close();
+      }
+      if( null != spillFile ) {
+        spillFile.delete();
+      }
+      // An export that wasn't moved into place is incomplete.
+      if( null != columnarTmpFile ) {
+        if( null != _columnar ) {
+          _columnar.abort();
+        }
+        columnarTmpFile.delete();
       }
       if( null != wsClient ) {
         wsClient.logout();
       }
+      if( null != _clientPool ) {
+        _clientPool.close();
+      }
+      if( null != _pinningMonitor ) {
+        _pinningMonitor.stop();
+      }
+      if( null != _leases ) {
+        _leases.close();
+      }
     }
   } // end doMain()
 
-  private void doCourse( CourseVO course, WebServiceClient wsClient, PrintStream dataOut ) throws RemoteException
+  /* Batch wait delay check.  If the batch wait size has been reached, then we
+     pause for a specified amount of time to reduce impact on the server as
+     web service calls (especially for grades) can be costly.  With the
+     adaptive throttle, the pause is only as long as the server needs: none
+     while it keeps up, up to the full delay once the throttle is down to its
+     minimum. */
+  private void batchWait( int submitted )
   {
-    // Get the course memberships and map them to their userPkId for quick lookup
-    Map<String, CourseMembershipVO> membersByUserIdMap = new HashMap<String, CourseMembershipVO>();
-    try {
-      // Load the course memberships by Student role. This should probably be
-      // made an externally configured property.
-      CourseMembershipVO[] members = wsClient.getMembershipsByCoursePkIdAndRoleIds( course.getId(), new String[] {"S"} );
-      _LOG.info( " Total student enrollments for course: " + members.length );
-      if( 0 == members.length ) {
-        _LOG.info( " No students = no grades, skipping course." );
-        return; // There is no need to do anything else in this loop
+    if ( (0 != submitted) && (_batchWaitSize > 0) && (0 == (submitted % _batchWaitSize )) ) {
+      long batchWaitDelay = (null == _throttle) ? _batchWaitDelay : (long) (_batchWaitDelay * _throttle.getPressure());
+      if ( batchWaitDelay > 0 ) {
+        _LOG.info( "Batch wait size [" + _batchWaitSize + "] reached, sleeping for [" + batchWaitDelay + "] milliseconds before next batch." );
+        quietSleep( batchWaitDelay );
+      }
+    }
+  }
+
+  /* Claims courses through the lease directory and submits them, until every
+     course is done by this process or another one.  The courses are numbered
+     in the order this process claims them, the order it writes them in. */
+  private void claimCourses( List<CourseVO> courses, List<Integer> indexes, Integer[] order, ExecutorService workers,
+                             Semaphore coursesInFlight, BlockingQueue<CourseData> fetchedQueue ) throws IOException
+  {
+    boolean[] done = new boolean[ courses.size() ];
+    int remaining = courses.size();
+    int sequence = 0;
+    while ( remaining > 0 ) {
+      boolean claimed = false;
+      for ( int ii = 0; ii < order.length; ii++ ) {
+        if ( _reportFailed ) {
+          throw new IOException( "Stopped claiming courses as the worker report failed, the [" + remaining + "] courses left are for the other workers." );
+        }
+        int cc = order[ ii ];
+        CourseVO course = courses.get( cc );
+        if ( done[ cc ] ) {
+          continue;
+        }
+        if ( _leases.isDone( course.getId() ) ) {
+          done[ cc ] = true;
+          remaining--;
+          continue;
+        }
+
+        coursesInFlight.acquireUninterruptibly();
+        if ( !_leases.claim( course.getId() ) ) {
+          coursesInFlight.release(); // Being worked on elsewhere (or already here).
+          continue;
+        }
+        batchWait( sequence );
+        _leasedCourses.put( sequence, course );
+        if ( !_pipeline.submit( newFetchTask( indexes.get( cc ), sequence++, course, fetchedQueue ) ) ) {
+          return; // Aborted, finish() has the failure.
+        }
+        claimed = true;
       }
-      // Do the mapping
-      for ( CourseMembershipVO member : members ) {
-        membersByUserIdMap.put( member.getUserId(), member );
+
+      // Everything left is being worked on, wait for it to be done or for a
+      // lease to expire.
+      if ( (remaining > 0) && !claimed ) {
+        quietSleep( LEASE_POLL_MILLIS );
       }
     }
-    catch( Exception e ) {
-      String message = "Failed to load memberships for course [" + course.getCourseId() + "].";
+    _LOG.info( "All courses are done, [" + sequence + "] of them by this worker." );
+  }
+
+  /* Copies the segments of the courses to the report in courseId order, then deletes them. */
+  private void assembleReport( PrintStream dataOut, List<CourseVO> courses ) throws IOException
+  {
+    List<String> coursePkIds = new ArrayList<String>( courses.size() );
+    for ( CourseVO course : courses ) {
+      coursePkIds.add( course.getId() );
+    }
+    dataOut.flush();
+    OutputStream out = (null != _compressedOut) ? _compressedOut : (null != _reportOut) ? _reportOut : System.out;
+    _segments.assemble( coursePkIds, reportChannel( out ) );
+    _segments.clear( coursePkIds );
+  }
+
+  /* Closes a report file, returns false (and reports it) if any of it failed to be written. */
+  private boolean closeReport( PrintStream dataOut )
+  {
+    dataOut.close();
+    if ( null != _compressedOut ) {
+      _LOG.info( _compressedOut.summary() );
+    }
+    if ( null != _reportOut ) {
+      _LOG.info( _reportOut.summary() );
+    }
+    if ( dataOut.checkError() ) {
+      String message = "Failed to write the report, the incomplete report is left in a temporary file.";
       _errors.add( message );
-      _LOG.error( message, e );
-      return;
+      _LOG.error( message );
+      return false;
     }
+    return true;
+  }
 
-    // Load the columns of the gradebook for this course.
-    ColumnVO[] columns;
+  /* Records the course just written to this process's report as done, once it is safely in the file. */
+  private void commitCourse( int sequence, PrintStream dataOut, boolean synced )
+  {
+    CourseVO course = _leasedCourses.remove( sequence );
+    dataOut.flush();
+    if ( !synced || dataOut.checkError() ) {
+      _reportFailed = true;
+      _leases.release( course.getId(), _reportOffset );
+      String message = "Failed to write course [" + course.getCourseId() + "] to the worker report, its lease will expire and another worker will do it.";
+      _errors.add( message );
+      _LOG.error( message );
+      return;
+    }
     try {
-      if( _externalGradeOnly ) {
-        columns = new ColumnVO[] { wsClient.getExternalGradeColumnByCoursePkId( course.getId() ) };
+      _leases.commit( course.getId(), course.getCourseId(), _reportOffset );
+    }
+    catch( IOException e ) {
+      _errors.add( e.getMessage() );
+      _LOG.error( e.getMessage(), e );
+    }
+  }
+
+  /* Merges the reports of all the workers into the final report, unless another worker does. */
+  private void mergeReport() throws IOException
+  {
+    if ( null != _partFile ) {
+      ChannelOutputStream out = new ChannelOutputStream( _partFile, false, _outputBufferSize, _outputSync );
+      try {
+        _leases.merge( out.getChannel(), new byte[0] );
       }
-      else {
-        columns = wsClient.getColumnsByCoursePkId( course.getId() );
+      finally {
+        out.close();
       }
-    }
-    catch( Exception e ) {
-      String message = "Failed to load columns for course [" + course.getCourseId() + "].";
-      _errors.add( message );
-      _LOG.error( message, e );
       return;
     }
 
-    _LOG.info( " Total columns to extract for course: " + columns.length );
+    if ( isStdOut() ) {
+      OutputStream out = compress( stdOutStream() );
+      try {
+        _leases.merge( reportChannel( out ), getHeaderBytes() );
+      }
+      finally {
+        closeFinalReport( out );
+      }
+      return;
+    }
+
+    File outFile = new File( getOutputLocation() );
+    File outLocFileParent = outFile.getAbsoluteFile().getParentFile();
+    outLocFileParent.mkdirs();
+    File tmpFile = File.createTempFile( outFile.getName(), ".tmp", outLocFileParent );
+    boolean merged = false;
+    OutputStream out = compress( new ChannelOutputStream( tmpFile, false, _outputBufferSize, _outputSync ) );
+    try {
+      merged = _leases.merge( reportChannel( out ), getHeaderBytes() );
+    }
+    finally {
+      closeFinalReport( out );
+      if ( !merged ) {
+        tmpFile.delete();
+      }
+    }
+    if ( !merged ) {
+      return;
+    }
+    ChannelOutputStream.moveIntoPlace( tmpFile, outFile );
+    _LOG.info( "Merged report written to [" + outFile + "]." );
+  }
+
+  /* Compresses a final report on its way to out, if the report is compressed. */
+  private OutputStream compress( OutputStream out )
+  {
+    if ( !_compressOutput ) {
+      return out;
+    }
+    return new ParallelGzipOutputStream( out, _compressBlockSize, _compressThreads );
+  }
+
+  /* A channel to copy a final report into: the file's own, so transferTo goes
+     straight to the file, unless the report is compressed on the way. */
+  private static WritableByteChannel reportChannel( OutputStream out ) throws IOException
+  {
+    if ( out instanceof ChannelOutputStream ) {
+      out.flush();
+      return ((ChannelOutputStream) out).getChannel();
+    }
+    return Channels.newChannel( out );
+  }
+
+  private static void closeFinalReport( OutputStream out ) throws IOException
+  {
+    out.close();
+    if ( out instanceof ParallelGzipOutputStream ) {
+      _LOG.info( ((ParallelGzipOutputStream) out).summary() );
+    }
+  }
+
+  /* System.out for a stream that closes what it writes to: flushed when closed, but left open. */
+  private static OutputStream stdOutStream()
+  {
+    return new FilterOutputStream( System.out ) {
+      public void write( byte[] bytes, int offset, int length ) throws IOException {
+        out.write( bytes, offset, length );
+      }
+      public void close() throws IOException {
+        flush();
+      }
+    };
+  }
+
+  /* Executors.newVirtualThreadPerTaskExecutor, or null if the JDK has no virtual threads. */
+  private static Method virtualThreadFactory()
+  {
+    try {
+      // Looked up by reflection, as the extract still builds on Java 8.
+      return Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+    }
+    catch( NoSuchMethodException e ) {
+      return null;
+    }
+  }
+
+  /* An executor with a virtual thread per task, only called once virtualThreadFactory() was found. */
+  private static ExecutorService newVirtualThreadExecutor()
+  {
+    try {
+      return (ExecutorService) virtualThreadFactory().invoke( null );
+    }
+    catch( Exception e ) {
+      throw new IllegalStateException( "Failed to start virtual threads: " + e, e );
+    }
+  }
+
+  /* The order to fetch the courses in, as positions in the list: as listed, or largest first. */
+  private Integer[] scheduleCourses( List<CourseVO> courses ) throws IOException
+  {
+    Integer[] order = new Integer[ courses.size() ];
+    for ( int ii = 0; ii < order.length; ii++ ) {
+      order[ ii ] = ii;
+    }
+    if ( !_largestFirst ) {
+      return order;
+    }
+
+    File estimatesFile = getEstimatesFile();
+    if ( null == estimatesFile ) {
+      _LOG.warn( "No app.courseEstimatesFile set for a report to STDOUT, courses are fetched in courseId order." );
+      return order;
+    }
+    _estimates = new CourseEstimates( estimatesFile );
+    _estimates.load();
+
+    // Largest estimate first, ties (e.g. courses never seen before) in courseId order.
+    final long[] estimates = new long[ order.length ];
+    for ( int ii = 0; ii < order.length; ii++ ) {
+      estimates[ ii ] = _estimates.estimate( courses.get( ii ).getCourseId() );
+    }
+    Arrays.sort( order, new Comparator<Integer>() {
+      public int compare( Integer o1, Integer o2 ) {
+        return Long.valueOf( estimates[ o2 ] ).compareTo( estimates[ o1 ] );
+      }
+    } );
+    if ( order.length > 0 && !_estimates.isEmpty() ) {
+      _LOG.info( "Fetching the largest courses first, starting with [" + courses.get( order[ 0 ] ).getCourseId() + "] estimated at [" + estimates[ order[ 0 ] ] + "] rows." );
+    }
+    return order;
+  }
+
+  /* Fetch stage: a worker loads a single course and hands it to the join stage. */
+  private Runnable newFetchTask( final int index, final int sequence, final CourseVO course, final BlockingQueue<CourseData> fetchedQueue )
+  {
+    return new Runnable() {
+      public void run() {
+        long start = System.nanoTime();
+        CourseData data;
+        try {
+          data = fetchCourse( index, sequence, course );
+        }
+        catch( Throwable t ) {
+          // The course would never reach the writer, which would wait for it forever.
+          _pipeline.abort( "fetch", t );
+          return;
+        }
+        _fetchStats.record( 1, start );
+        if ( (null != _estimates) && !data.isFailed() ) {
+          _estimates.record( course.getCourseId(), data.getSize() );
+        }
+        putQuietly( fetchedQueue, data );
+      }
+    };
+  }
+
+  /* Join stage: lines up each fetched course's students, memberships and scores. */
+  private void joinStage( BlockingQueue<CourseData> fetchedQueue, BlockingQueue<CourseData> joinedQueue )
+    throws InterruptedException
+  {
+    // One dictionary of PK ids, reused for every course.
+    IdDictionary ids = new IdDictionary();
+    for ( CourseData data = fetchedQueue.take(); CourseData.END != data; data = fetchedQueue.take() ) {
+      long start = System.nanoTime();
+      try {
+        data.join( ids );
+      }
+      catch( Exception e ) {
+        String message = "Error joining course [" + data.getCourse().getCourseId() + "]: " + e.getMessage();
+        _errors.add( message );
+        _LOG.error( message, e );
+        data = CourseData.failed( data.getSequence(), data.getCourse() );
+      }
+      _joinStats.record( 1, start );
+      joinedQueue.put( data );
+    }
+    joinedQueue.put( CourseData.END );
+  }
+
+  /* Format stage: renders each joined course into chunks of report bytes, one per column
+     (or in the wide format, one per course section and so many students). */
+  private void formatStage( BlockingQueue<CourseData> joinedQueue, BlockingQueue<ReportChunk> writeQueue )
+    throws InterruptedException
+  {
+    // Reused for every column this thread renders.
+    RowWriter rowOut = new RowWriter( _delimiter );
+    RowWriter prefixOut = new RowWriter( _delimiter );
+    for ( CourseData data = joinedQueue.take(); CourseData.END != data; data = joinedQueue.take() ) {
+      if ( null != _columnar ) {
+        exportCourse( data );
+      }
+      if ( _wideFormat ) {
+        formatWide( data, rowOut, writeQueue );
+        continue;
+      }
+      int columnCount = data.isSkipped() ? 0 : data.getColumns().size();
+      boolean failed = data.isFailed();
+      for ( int cc = 0; cc < columnCount; cc++ ) {
+        long start = System.nanoTime();
+        rowOut.reset();
+        int rows = 0;
+        try {
+          if ( _sparseRoster && (0 == cc) ) {
+            rows += printRoster( data, rowOut );
+          }
+          // The course and column fields are the same for every row of the
+          // column, so with row templates they are rendered once and copied,
+          // and only the student's fields are rendered for each row.
+          byte[] rowPrefix = _rowTemplates ? renderRowPrefix( data.getCourse(), data.getColumns(), cc, prefixOut ) : null;
+          for ( int ss = 0; ss < data.getStudentCount(); ss++ ) {
+            if ( _sparseOutput && (data.getColumnScore( cc, ss ) < 0) ) {
+              continue; // Ungraded, left out of a sparse report.
+            }
+            if ( null != rowPrefix ) {
+              rowOut.append( rowPrefix );
+              printStudentRow( data, cc, ss, rowOut );
+            }
+            else {
+              printRow( data, cc, ss, rowOut );
+            }
+            rows++;
+          }
+        }
+        catch( Exception e ) {
+          // Keep the rows written so far, as the report always has.
+          String message = "Error processing course [" + data.getCourse().getCourseId() + "]: " + e.getMessage();
+          _errors.add( message );
+          _LOG.error( message, e );
+          columnCount = cc + 1;
+          failed = true;
+        }
+        _formatStats.record( rows, start );
+        writeQueue.put( new ReportChunk( data.getSequence(), rowOut.toByteArray(), cc == columnCount - 1, failed ) );
+      }
+      if ( 0 == columnCount ) {
+        writeQueue.put( new ReportChunk( data.getSequence(), new byte[0], true, failed ) );
+      }
+    }
+    writeQueue.put( ReportChunk.END );
+  }
+
+  /* Write stage: copies the chunks to the report, holding back any that arrive ahead of
+     their turn, in memory or in the spill file if there is one. */
+  private void writeStage( BlockingQueue<ReportChunk> writeQueue, PrintStream dataOut, Semaphore coursesInFlight, RandomAccessFile spill )
+    throws InterruptedException
+  {
+    try {
+      writeInOrder( writeQueue, dataOut, coursesInFlight, spill );
+    }
+    catch( IOException e ) {
+      // The chunks in the spill file can't be got back (or put there), so
+      // the courses behind them can never be written.
+      _pipeline.abort( "write", e );
+    }
+  }
+
+  private void writeInOrder( BlockingQueue<ReportChunk> writeQueue, PrintStream dataOut, Semaphore coursesInFlight, RandomAccessFile spill )
+    throws InterruptedException, IOException
+  {
+    int next = 0;
+    Map<Integer, List<ReportChunk>> waiting = new HashMap<Integer, List<ReportChunk>>();
+    for ( ReportChunk chunk = writeQueue.take(); ReportChunk.END != chunk; chunk = writeQueue.take() ) {
+      if ( chunk._sequence != next ) {
+        if ( null != spill ) {
+          chunk = spillChunk( chunk, spill, coursesInFlight );
+        }
+        List<ReportChunk> chunks = waiting.get( chunk._sequence );
+        if ( null == chunks ) {
+          chunks = new ArrayList<ReportChunk>();
+          waiting.put( chunk._sequence, chunks );
+        }
+        chunks.add( chunk );
+        continue;
+      }
+
+      if ( writeChunk( chunk, dataOut, coursesInFlight, spill ) ) {
+        // The course is complete, write out whatever is waiting behind it.
+        next++;
+        for ( List<ReportChunk> chunks = waiting.remove( next ); null != chunks; chunks = waiting.remove( next ) ) {
+          boolean complete = false;
+          for ( ReportChunk waitingChunk : chunks ) {
+            complete = writeChunk( waitingChunk, dataOut, coursesInFlight, spill );
+          }
+          if ( !complete ) {
+            break; // The rest of this course hasn't been formatted yet.
+          }
+          next++;
+        }
+      }
+    }
+    dataOut.flush();
+  }
+
+  /* Write stage with a segment directory: writes each chunk straight to the segment of its
+     course, as the courses don't need to be put back in order until the report is assembled. */
+  private void segmentStage( BlockingQueue<ReportChunk> writeQueue, Semaphore coursesInFlight, List<CourseVO> courses )
+    throws InterruptedException
+  {
+    Map<Integer, ChannelOutputStream> open = new HashMap<Integer, ChannelOutputStream>();
+    Set<Integer> broken = new HashSet<Integer>();
+    for ( ReportChunk chunk = writeQueue.take(); ReportChunk.END != chunk; chunk = writeQueue.take() ) {
+      long start = System.nanoTime();
+      CourseVO course = courses.get( chunk._sequence );
+      ChannelOutputStream segment = open.get( chunk._sequence );
+      try {
+        if ( !broken.contains( chunk._sequence ) ) {
+          if ( null == segment ) {
+            segment = _segments.open( course.getId() );
+            open.put( chunk._sequence, segment );
+          }
+          segment.write( chunk._bytes, 0, chunk._bytes.length );
+          if ( chunk._last ) {
+            open.remove( chunk._sequence );
+            _segments.close( course.getId(), segment, chunk._failed );
+          }
+        }
+      }
+      catch( IOException e ) {
+        // The course is left out of the report, and done again by the next run.
+        String message = "Failed to write the segment of course [" + course.getCourseId() + "]: " + e.getMessage();
+        _errors.add( message );
+        _LOG.error( message, e );
+        broken.add( chunk._sequence );
+        open.remove( chunk._sequence );
+        if ( null != segment ) {
+          _segments.discard( course.getId(), segment );
+        }
+      }
+      _writeStats.record( chunk._bytes.length, start );
+      if ( chunk._last ) {
+        broken.remove( chunk._sequence );
+        coursesInFlight.release();
+      }
+    }
+  }
+
+  /* Writes a chunk to the report, returns true if it was the last chunk of its course. */
+  private boolean writeChunk( ReportChunk chunk, PrintStream dataOut, Semaphore coursesInFlight, RandomAccessFile spill )
+    throws IOException
+  {
+    long start = System.nanoTime();
+    byte[] bytes = chunk._bytes;
+    if ( chunk.isSpilled() ) {
+      bytes = new byte[ chunk._spillLength ];
+      spill.seek( chunk._spillOffset );
+      spill.readFully( bytes );
+    }
+    dataOut.write( bytes, 0, bytes.length );
+    _writeStats.record( bytes.length, start );
+    _reportOffset += bytes.length;
+    if ( chunk._last ) {
+      boolean synced = syncCourse();
+      if ( null != _leases ) {
+        commitCourse( chunk._sequence, dataOut, synced );
+      }
+    }
+    if ( chunk._last && !chunk.isSpilled() ) {
+      coursesInFlight.release();
+    }
+    return chunk._last;
+  }
+
+  /* Forces the course just written to disk if the report is synced per course, returns false if that failed. */
+  private boolean syncCourse()
+  {
+    if ( (null == _reportOut) || (null != _compressedOut) ) {
+      return true;
+    }
+    try {
+      _reportOut.endCourse();
+      return true;
+    }
+    catch( IOException e ) {
+      String message = "Failed to sync the report: " + e.getMessage();
+      _errors.add( message );
+      _LOG.error( message, e );
+      return false;
+    }
+  }
+
+  /* Moves a chunk that is ahead of its turn to the spill file.  Its course no
+     longer counts as in flight once all of it is there.  Chunks are appended
+     at the end the writer keeps track of, which only moves once a chunk is
+     all there. */
+  private ReportChunk spillChunk( ReportChunk chunk, RandomAccessFile spill, Semaphore coursesInFlight )
+    throws IOException
+  {
+    long offset = _spillEnd;
+    spill.seek( offset );
+    spill.write( chunk._bytes );
+    _spillEnd = offset + chunk._bytes.length;
+    if ( chunk._last ) {
+      coursesInFlight.release();
+    }
+    return new ReportChunk( chunk._sequence, offset, chunk._bytes.length, chunk._last, chunk._failed );
+  }
+
+  /* Leases a client from the pool and loads a single course. */
+  private CourseData fetchCourse( int index, int sequence, CourseVO course )
+  {
+    WebServiceClient wsClient;
+    try {
+      wsClient = _clientPool.lease();
+    }
+    catch( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      return CourseData.failed( sequence, course );
+    }
+    catch( RemoteException e ) {
+      String message = "Error processing course [" + course.getCourseId() + "]: " + e.getMessage();
+      _errors.add( message );
+      _LOG.error( message, e );
+      return CourseData.failed( sequence, course );
+    }
+
+    // A failed web service call may mean the session is broken, so the
+    // client is replaced rather than handed to the next course.
+    boolean healthy = true;
+    try {
+      _LOG.info( "Course " + (index+1) + ": " + course.getCourseId() );
+      return doCourse( sequence, course, wsClient );
+    }
+    catch (Exception e ) {
+      healthy = !(e instanceof RemoteException);
+      String message = "Error processing course [" + course.getCourseId() + "]: " + e.getMessage();
+      _errors.add( message );
+      _LOG.error( message, e );
+      return CourseData.failed( sequence, course );
+    }
+    finally {
+      _clientPool.release( wsClient, healthy );
+    }
+  }
+
+  /* Loads everything needed for the rows of a course. */
+  private CourseData doCourse( int sequence, CourseVO course, WebServiceClient wsClient ) throws RemoteException
+  {
+    // When fetching concurrently, the users are loaded while the memberships
+    // load.  The gradebook calls still wait for the memberships so that
+    // courses without students never hit the gradebook.
+    Future<UserVO[]> usersFuture = null;
+    if ( _concurrentFetch ) {
+      usersFuture = wsClient.getUsersByCoursePkIdOn( course.getId(), _fetchExecutor );
+    }
+
+    // Get the course memberships, the join maps them to their users.  Each
+    // response is copied into a compact snapshot of the fields the report
+    // uses as soon as it is loaded, and its VOs dropped.
+    final CourseSnapshot.Members members;
+    try {
+      // Load the course memberships by Student role. This should probably be
+      // made an externally configured property.
+      members = new CourseSnapshot.Members( wsClient.getMembershipsByCoursePkIdAndRoleIds( course.getId(), new String[] {"S"} ) );
+      _LOG.info( " Total student enrollments for course: " + members.size() );
+      if( 0 == members.size() ) {
+        _LOG.info( " No students = no grades, skipping course." );
+        cancel( usersFuture );
+        return new CourseData( sequence, course ); // There is no need to do anything else in this loop
+      }
+    }
+    catch( Exception e ) {
+      String message = "Failed to load memberships for course [" + course.getCourseId() + "].";
+      _errors.add( message );
+      _LOG.error( message, e );
+      cancel( usersFuture );
+      return CourseData.failed( sequence, course );
+    }
+
+    // Scores are the slowest load by far, so start them before the columns,
+    // unless the columns are needed to decide how to load them.
+    Future<ScoreVO[]> scoresFuture = null;
+    if ( _concurrentFetch && (_columnScoresThreshold <= 0) && !isChunked( members.size() ) ) {
+      _LOG.info( " Loading grades..." );
+      scoresFuture = wsClient.getScoresByCoursePkIdOn( course.getId(), _fetchExecutor );
+    }
+
+    // Load the columns of the gradebook for this course.
+    ColumnVO[] columnVOs;
+    try {
+      if( _externalGradeOnly ) {
+        columnVOs = new ColumnVO[] { wsClient.getExternalGradeColumnByCoursePkId( course.getId() ) };
+      }
+      else {
+        columnVOs = wsClient.getColumnsByCoursePkId( course.getId() );
+      }
+    }
+    catch( Exception e ) {
+      String message = "Failed to load columns for course [" + course.getCourseId() + "].";
+      _errors.add( message );
+      _LOG.error( message, e );
+      cancel( usersFuture );
+      cancel( scoresFuture );
+      return CourseData.failed( sequence, course );
+    }
+
+    _LOG.info( " Total columns to extract for course: " + columnVOs.length );
 
     // Sort the columns by position for report comparison
-    Arrays.sort( columns, new Comparator<ColumnVO>() {
+    Arrays.sort( columnVOs, new Comparator<ColumnVO>() {
       public int compare( ColumnVO o1, ColumnVO o2 ) {
         return Integer.valueOf(o1.getPosition()).compareTo( o2.getPosition() );
 //        return o1.getColumnDisplayName().compareTo( o2.getColumnDisplayName() );
       }
     } );
+    CourseSnapshot.Columns columns = new CourseSnapshot.Columns( columnVOs, _stringPool );
+    columnVOs = null;
+
+    // A giant course keeps the strings of its users, memberships and scores
+    // off the heap while it works its way through the pipeline, so it
+    // doesn't hold up the collector for every other course.  Each response
+    // is moved off heap as soon as it is loaded, so the whole course is
+    // never on the heap.
+    OffHeapStore offHeap = null;
+    if ( (null != _offHeapStore) && ((long) members.size() * columns.size() > _offHeapThreshold) ) {
+      _LOG.info( " Keeping course off heap..." );
+      offHeap = _offHeapStore;
+      moveOffHeap( course, members, offHeap );
+    }
+
+    // The scores of a large course come column by column, so that no single
+    // response has to hold the whole gradebook, and those of a course with
+    // many students also in slices of students.
+    boolean scoresByColumn = ((_columnScoresThreshold > 0) && ((long) members.size() * columns.size() > _columnScoresThreshold))
+                             || isChunked( members.size() );
+    if ( _concurrentFetch && (null == scoresFuture) && !scoresByColumn ) {
+      _LOG.info( " Loading grades..." );
+      scoresFuture = wsClient.getScoresByCoursePkIdOn( course.getId(), _fetchExecutor );
+    }
+
+    // Join the concurrent loads, or load in sequence if not fetching
+    // concurrently.
+    final CourseSnapshot.Users users;
+    final CourseSnapshot.Scores scores;
+    try {
+      users = new CourseSnapshot.Users( sortUsers( (null == usersFuture) ? wsClient.getUsersByCoursePkId( course.getId() ) : await( usersFuture ) ) );
+      moveOffHeap( course, users, offHeap );
+      if ( scoresByColumn ) {
+        scores = loadScoresByColumn( course, columns, members, wsClient, offHeap );
+      }
+      else if ( null == scoresFuture ) {
+        _LOG.info( " Loading grades..." );
+        scores = new CourseSnapshot.Scores( wsClient.getScoresByCoursePkId( course.getId() ), _stringPool );
+        moveOffHeap( course, scores, offHeap );
+      }
+      else {
+        scores = new CourseSnapshot.Scores( await( scoresFuture ), _stringPool );
+        moveOffHeap( course, scores, offHeap );
+      }
+      _LOG.info( " Total grades for course: " + scores.size() );
+    }
+    finally {
+      cancel( scoresFuture );
+    }
+
+    if ( null != offHeap ) {
+      offHeap.recordCourse();
+    }
+    return new CourseData( sequence, course, columns, users, members, scores );
+  } // end doCourse()
 
-    // Load the users for the course.  Note that this number could differ
-    // from the number of course memberships as we are NOT filtering by
-    // course role here (i.e. instructors are included in this load).
-    UserVO[] users = wsClient.getUsersByCoursePkId( course.getId() );
+  /* Moves a loaded table of a giant course off heap, if the course is kept off heap. */
+  private void moveOffHeap( CourseVO course, CourseSnapshot.Table table, OffHeapStore offHeap )
+  {
+    if ( null == offHeap ) {
+      return;
+    }
+    try {
+      table.moveOffHeap( offHeap );
+    }
+    catch( IOException e ) {
+      // Whatever didn't make it stays on heap.
+      _LOG.warn( "Failed to move course [" + course.getCourseId() + "] off heap: " + e.getMessage() );
+    }
+  }
+
+  /* Sorts the loaded users of a course by username. */
+  private UserVO[] sortUsers( UserVO[] users )
+  {
+    // Note that the number of users could differ from the number of course
+    // memberships as we are NOT filtering by course role when loading them
+    // (i.e. instructors are included in this load).
     _LOG.info( " Total users for course: " + users.length );
 
     // Sort the users by username for report comparison
@@ -288,74 +1612,116 @@ public class GradeExtractApp
         return o1.getName().compareTo( o2.getName() );
       }
     } );
+    return users;
+  }
 
-    // Load all the scores for the course
-    _LOG.info( " Loading grades..." );
-    ScoreVO[] scores = wsClient.getScoresByCoursePkId( course.getId() );
-    _LOG.info( " Total grades for course: " + scores.length );
-
-    for ( ColumnVO column: columns )
-    {
-      for ( UserVO user : users )
-      {
-        // Look up the membership.
-        CourseMembershipVO member = membersByUserIdMap.get( user.getId() );
-        if( null == member ) {
-          // This can happen if the user is a non-student in the course or
-          // if the user's enrollment is disabled...
-          continue;
-        }
-
-        // Lookup the score for this membership and column.
-        ScoreVO score = lookupScore( column, member, scores );
-
-        printRow( course, column, user, member, score, dataOut );
+  /* True if a course with this many students loads its scores in slices of students. */
+  private boolean isChunked( int studentCount ) {
+    return (_scoreMemberChunkSize > 0) && (studentCount > _scoreMemberChunkSize);
+  }
 
-      }// end for users
-    } // end for columns
-  } // end doMain()
-  
-  /* Convenience method to find a score for a column/membership in a list of scores. */
-  private ScoreVO lookupScore( ColumnVO column, CourseMembershipVO member, ScoreVO[] scores )
+  /* Loads the scores of a course one column at a time, with several columns in
+     flight at once, and each column in slices of students if there are many.
+     Each column is moved off heap as it arrives if offHeap is given. */
+  private CourseSnapshot.Scores loadScoresByColumn( CourseVO course, CourseSnapshot.Columns columns, CourseSnapshot.Members members,
+                                                    WebServiceClient wsClient, OffHeapStore offHeap )
+    throws RemoteException
   {
-    ScoreVO returnValue = null;
+    String[] memberIds = null;
+    if ( isChunked( members.size() ) ) {
+      _LOG.info( " Loading grades by column, [" + _columnScoresParallel + "] at a time, in slices of [" + _scoreMemberChunkSize + "] students..." );
+      memberIds = members._id.toArray();
+    }
+    else {
+      _LOG.info( " Loading grades by column, [" + _columnScoresParallel + "] at a time..." );
+    }
+
+    // Each column's scores are copied out of their VOs as soon as they arrive.
+    List<Future<ScoreVO[]>> columnScores = new ArrayList<Future<ScoreVO[]>>( columns.size() );
+    List<CourseSnapshot.Scores> scores = new ArrayList<CourseSnapshot.Scores>( columns.size() );
     try {
-      for ( ScoreVO scoreVO : scores ) {
-        if ( null != scoreVO && column.getId().equals( scoreVO.getColumnId() ) ) {
-          if ( member.getId().equals( scoreVO.getMemberId() ) ) {
-            returnValue = scoreVO;
-            break;
+      for ( int cc = 0; cc < columns.size(); cc++ ) {
+        while ( (columnScores.size() < columns.size()) && (columnScores.size() < cc + _columnScoresParallel) ) {
+          String columnId = columns._id[ columnScores.size() ];
+          if ( null == columnId ) {
+            columnScores.add( CompletableFuture.completedFuture( new ScoreVO[ 0 ] ) );
+          }
+          else if ( null != memberIds ) {
+            columnScores.add( wsClient.getScoresByColumnIdInMemberChunksOn( course.getId(), columnId, memberIds, _scoreMemberChunkSize, _fetchExecutor ) );
+          }
+          else {
+            columnScores.add( wsClient.getScoresByColumnIdOn( course.getId(), columnId, _fetchExecutor ) );
           }
         }
+        CourseSnapshot.Scores column = new CourseSnapshot.Scores( await( columnScores.get( cc ) ), _stringPool );
+        columnScores.set( cc, null );
+        moveOffHeap( course, column, offHeap );
+        scores.add( column );
       }
     }
-    catch ( Exception e ) {
-      _errors.add( e.getMessage() );
-      _LOG.error( e.getMessage(), e );
+    finally {
+      for ( Future<ScoreVO[]> future : columnScores ) {
+        cancel( future );
+      }
     }
-    return returnValue;
+    return CourseSnapshot.Scores.concat( scores );
   }
 
-  /* Convenience method for getting an initialized client while optionally logging out an old one. */
-  private WebServiceClient newWebServiceClient( WebServiceClient oldClient )
-    throws RemoteException
+  /* Waits for a concurrent load, rethrowing its failure as the load would have. */
+  private <T> T await( Future<T> future ) throws RemoteException
   {
-    if( null != oldClient ) {
-      try {
-        oldClient.logout();
+    try {
+      return future.get();
+    }
+    catch( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException( "Interrupted while waiting for a web service call.", e );
+    }
+    catch( ExecutionException e ) {
+      Throwable cause = e.getCause();
+      if ( cause instanceof RemoteException ) {
+        throw (RemoteException) cause;
       }
-      catch( Exception e ) {
-        _errors.add( e.getMessage() );
-        _LOG.error( e.getMessage(), e );
+      if ( cause instanceof RuntimeException ) {
+        throw (RuntimeException) cause;
       }
+      throw new RemoteException( cause.getMessage(), cause );
     }
+  }
 
+  /* Abandons a concurrent load that is no longer needed.  Calls already on
+     the wire are left to finish, as Axis2 calls can't be interrupted. */
+  private void cancel( Future<?> future ) {
+    if ( null != future ) {
+      future.cancel( false );
+    }
+  }
+  
+  /* Convenience method for getting an initialized client. */
+  private WebServiceClient newWebServiceClient()
+    throws RemoteException
+  {
     WebServiceClient newClient = new WebServiceClient( _appConfig );
     newClient.initialize();
     newClient.login();
     return newClient;
   }
 
+  /* Hand off to the next stage, but don't throw exception if interrupted */
+  private <T> void putQuietly( BlockingQueue<T> queue, T item ) {
+    try {
+      queue.put( item );
+    }
+    catch( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      if ( _pipeline.isAborted() ) {
+        return; // Interrupted by the abort, which has already been reported.
+      }
+      _LOG.error( e.getMessage(), e );
+      _errors.add( e.getMessage() );
+    }
+  }
+
   /* Sleep for the specified time, but don't throw exception if interrupted */
   private void quietSleep( long millis ) {
     try {
@@ -367,93 +1733,397 @@ public class GradeExtractApp
     }
   }
 
-  private void printHeader( PrintStream out ) {
-    printRow( true, null, null, null, null, null, out );
-  }
-
-  private void printRow( CourseVO course, ColumnVO column, UserVO user, CourseMembershipVO member, ScoreVO score, PrintStream out ) {
-    printRow( false, course, column, user, member, score, out );
-  }
-
-  private void printRow( boolean header, CourseVO course, ColumnVO column, UserVO user, CourseMembershipVO member, ScoreVO score, PrintStream out )
-  {
-    out.print( header ? "COURSE_ID"        : course.getCourseId() );
-    out.print( _delimiter );
-    out.print( header ? "COURSE_BATCHUID"  : course.getBatchUid() );
-    out.print( _delimiter );
-    out.print( header ? "COURSE_PKID"      : course.getId() );
-    out.print( _delimiter );
-    out.print( header ? "COURSE_TITLE"     : course.getName() );
-    out.print( _delimiter );
-    out.print( header ? "COURSE_TYPE"      : course.getCourseServiceLevel() );
-    out.print( _delimiter );
-    out.print( header ? "COURSE_AVAILABLE" : course.getAvailable() );
-    out.print( _delimiter );
-
-    out.print( header ? "COLUMN_NAME"            : column.getColumnDisplayName() );
-    out.print( _delimiter );
-    out.print( header ? "COLUMN_PKID"            : column.getId() );
-    out.print( _delimiter );
-    out.print( header ? "IS_EXTERNAL_GRADE"      : (column.getExternalGrade() ? "Y" : "N") );
-    out.print( _delimiter );
-    out.print( header ? "COLUMN_IS_DELETED"      : (column.getDeleted() ? "Y" : "N") );
-    out.print( _delimiter );
-    out.print( header ? "COLUMN_PKID"            : column.getPosition() );
-    out.print( _delimiter );
-    out.print( header ? "COLUMN_MODEL"           : column.getAggregationModel() );
-    out.print( _delimiter );
-    out.print( header ? "COLUMN_CALC_TYPE"       : column.getCalculationType() );
-    out.print( _delimiter );
-    out.print( header ? "COLUMN_DUE_DATE"        : column.getDueDate() );
-    out.print( _delimiter );
-    out.print( header ? "COLUMN_MULTI_ATTEMPTS"  : column.getMultipleAttempts() );
-    out.print( _delimiter );
-    out.print( header ? "COLUMN_POINTS_POSSIBLE" : column.getPossible() );
-    out.print( _delimiter );
-    out.print( header ? "COLUMN_IS_SCORABLE"     : (column.getScorable() ? "Y" : "N") );
-    out.print( _delimiter );
-    out.print( header ? "COLUMN_IS_VISIBLE"      : (column.getVisible() ? "Y" : "N") );
-    out.print( _delimiter );
-
-    out.print( header ? "USER_ID"           : user.getName() );
-    out.print( _delimiter );
-    out.print( header ? "USER_BATCHUID"     : user.getUserBatchUid() );
-    out.print( _delimiter );
-    out.print( header ? "USER_PKID"         : user.getId() );
-    out.print( _delimiter );
-    out.print( header ? "USER_IS_AVAILABLE" : (user.getIsAvailable() ? "Y" : "N") );
-    out.print( _delimiter );
-    out.print( header ? "USER_STUDENT_ID"   : user.getStudentId() );
-    out.print( _delimiter );
-
-    out.print( header ? "ENR_PKID"         : member.getId() );
-    out.print( _delimiter );
-    out.print( header ? "ENR_IS_AVAILABLE" : (member.getAvailable() ? "Y" : "N") );
-    out.print( _delimiter );
-    out.print( header ? "ENR_DATE"         : toDate(member.getEnrollmentDate()) );
-    out.print( _delimiter );
-
-    out.print( header ? "GRADE_DISPLAYED"    : (null == score ? "" : score.getSchemaGradeValue()) );
-    out.print( _delimiter );
-    out.print( header ? "GRADE"              : (null == score ? "" : score.getGrade()) );
-    out.print( _delimiter );
-    out.print( header ? "GRADE_ID"           : (null == score ? "" : score.getId()) );
-    out.print( _delimiter );
-    out.print( header ? "GRADE_MANUAL"       : (null == score ? "" : score.getManualGrade()) );
-    out.print( _delimiter );
-    out.print( header ? "GRADE_SCORE_MANUAL" : (null == score ? "" : score.getManualScore()) );
-    out.print( _delimiter );
-    out.print( header ? "GRADE_STATUS"       : (null == score ? "" : score.getStatus()) );
-
-    out.println();
-  }
-
-  private final SimpleDateFormat _df = (new SimpleDateFormat( "yyyy/MM/dd HH:mm:ss" ));
-
-  private String toDate( long seconds ) {
-    // Date provided by web services is in seconds, we need to convert to
-    // milliseconds and format to a String.  For more info, see:
-    //   blackboard.platform.ws.WebserviceHelper.safeTime( Calendar c )
-    return _df.format( new Date( (seconds * 1000) ) );
+  // The report's fields, in the order they are rendered: the course, the
+  // column, the student (user and enrollment) and the grade.
+  private static final String[] COURSE_FIELDS = {
+    "COURSE_ID", "COURSE_BATCHUID", "COURSE_PKID", "COURSE_TITLE", "COURSE_TYPE", "COURSE_AVAILABLE"
+  };
+  private static final String[] COLUMN_FIELDS = {
+    "COLUMN_NAME", "COLUMN_PKID", "IS_EXTERNAL_GRADE", "COLUMN_IS_DELETED", "COLUMN_PKID", "COLUMN_MODEL",
+    "COLUMN_CALC_TYPE", "COLUMN_DUE_DATE", "COLUMN_MULTI_ATTEMPTS", "COLUMN_POINTS_POSSIBLE",
+    "COLUMN_IS_SCORABLE", "COLUMN_IS_VISIBLE"
+  };
+  private static final String[] STUDENT_FIELDS = {
+    "USER_ID", "USER_BATCHUID", "USER_PKID", "USER_IS_AVAILABLE", "USER_STUDENT_ID",
+    "ENR_PKID", "ENR_IS_AVAILABLE", "ENR_DATE"
+  };
+  private static final String[] GRADE_FIELDS = {
+    "GRADE_DISPLAYED", "GRADE", "GRADE_ID", "GRADE_MANUAL", "GRADE_SCORE_MANUAL", "GRADE_STATUS"
+  };
+
+  // The fields of the columnar export: those of the long format, typed, with
+  // the column's position under its own name.  Dates are in seconds.
+  private static final String[] COLUMNAR_FIELDS = {
+    "COURSE_ID", "COURSE_BATCHUID", "COURSE_PKID", "COURSE_TITLE", "COURSE_TYPE", "COURSE_AVAILABLE",
+    "COLUMN_NAME", "COLUMN_PKID", "IS_EXTERNAL_GRADE", "COLUMN_IS_DELETED", "COLUMN_POSITION", "COLUMN_MODEL",
+    "COLUMN_CALC_TYPE", "COLUMN_DUE_DATE", "COLUMN_MULTI_ATTEMPTS", "COLUMN_POINTS_POSSIBLE",
+    "COLUMN_IS_SCORABLE", "COLUMN_IS_VISIBLE",
+    "USER_ID", "USER_BATCHUID", "USER_PKID", "USER_IS_AVAILABLE", "USER_STUDENT_ID",
+    "ENR_PKID", "ENR_IS_AVAILABLE", "ENR_DATE",
+    "GRADE_DISPLAYED", "GRADE", "GRADE_ID", "GRADE_MANUAL", "GRADE_SCORE_MANUAL", "GRADE_STATUS"
+  };
+  private static final byte S = ColumnarWriter.STRING;
+  private static final byte B = ColumnarWriter.BOOLEAN;
+  private static final byte[] COLUMNAR_TYPES = {
+    S, S, S, S, S, B,
+    S, S, B, B, ColumnarWriter.INT, S,
+    S, ColumnarWriter.LONG, ColumnarWriter.INT, ColumnarWriter.DOUBLE,
+    B, B,
+    S, S, S, B, S,
+    S, B, ColumnarWriter.LONG,
+    S, S, S, S, ColumnarWriter.DOUBLE, ColumnarWriter.INT
+  };
+
+  // Record types of the wide format, the first field of each of its rows.
+  private static final String WIDE_COURSE = "COURSE";
+  private static final String WIDE_COLUMN = "COLUMN";
+  private static final String WIDE_STUDENT = "STUDENT";
+
+  // A wide course is handed to the writer in chunks of about this size.
+  private static final int WIDE_CHUNK_BYTES = 1024 * 1024;
+
+  private void printHeader( PrintStream out ) throws IOException {
+    out.write( getHeaderBytes() );
+  }
+
+  /* The header of the report: the names of the fields, or in the wide format
+     the layout of each type of row, each on a line starting with #. */
+  private byte[] getHeaderBytes()
+  {
+    RowWriter headerOut = new RowWriter( _delimiter );
+    if ( _wideFormat ) {
+      headerOut.append( "#" + WIDE_COURSE ).appendDelimiter();
+      printNames( COURSE_FIELDS, headerOut );
+      headerOut.endRow();
+      headerOut.append( "#" + WIDE_COLUMN ).appendDelimiter();
+      printNames( COLUMN_FIELDS, headerOut );
+      headerOut.endRow();
+      headerOut.append( "#" + WIDE_STUDENT ).appendDelimiter();
+      printNames( STUDENT_FIELDS, headerOut );
+      for ( int field : _wideGradeFields ) {
+        headerOut.appendDelimiter().append( GRADE_FIELDS[ field ] );
+      }
+      headerOut.endRow();
+    }
+    else {
+      printNames( COURSE_FIELDS, headerOut );
+      printNames( COLUMN_FIELDS, headerOut.appendDelimiter() );
+      printNames( STUDENT_FIELDS, headerOut.appendDelimiter() );
+      printNames( GRADE_FIELDS, headerOut.appendDelimiter() );
+      headerOut.endRow();
+    }
+    return headerOut.toByteArray();
+  }
+
+  /* The settings the rows of a segment depend on, beyond those the header shows. */
+  private String getSegmentSettings() throws IOException
+  {
+    return new String( getHeaderBytes(), "UTF-8" )
+      + "delimiter=" + _delimiter + "\n"
+      + "sparseOutput=" + _sparseOutput + "\n"
+      + "sparseRoster=" + _sparseRoster + "\n"
+      + "filterOnExternalGrade=" + _externalGradeOnly + "\n";
+  }
+
+  private void printNames( String[] names, RowWriter out )
+  {
+    for ( int ii = 0; ii < names.length; ii++ ) {
+      if ( ii > 0 ) {
+        out.appendDelimiter();
+      }
+      out.append( names[ ii ] );
+    }
+  }
+
+  /* Renders the row of a student (by position among the students) in a column. */
+  private void printRow( CourseData data, int cc, int ss, RowWriter out )
+  {
+    printCourseFields( data.getCourse(), out );
+    printColumnFields( data.getColumns(), cc, out.appendDelimiter() );
+    printStudentRow( data, cc, ss, out.appendDelimiter() );
+  }
+
+  /* The row template of a column: the course and column fields every row of the column starts with. */
+  private byte[] renderRowPrefix( CourseVO course, CourseSnapshot.Columns columns, int cc, RowWriter prefixOut )
+  {
+    prefixOut.reset();
+    printCourseFields( course, prefixOut );
+    printColumnFields( columns, cc, prefixOut.appendDelimiter() );
+    prefixOut.appendDelimiter();
+    return prefixOut.toByteArray();
+  }
+
+  /*
+   * The roster of a course in a sparse report, so the rows left out can be
+   * rebuilt: a row for each column with the student and grade fields empty,
+   * then a row for each student with the column and grade fields empty.
+   * Returns the number of rows.
+   */
+  private int printRoster( CourseData data, RowWriter out )
+  {
+    CourseSnapshot.Columns columns = data.getColumns();
+    for ( int cc = 0; cc < columns.size(); cc++ ) {
+      printCourseFields( data.getCourse(), out );
+      printColumnFields( columns, cc, out.appendDelimiter() );
+      printEmptyFields( STUDENT_FIELDS.length + GRADE_FIELDS.length, out );
+      out.endRow();
+    }
+    for ( int ss = 0; ss < data.getStudentCount(); ss++ ) {
+      printCourseFields( data.getCourse(), out );
+      printEmptyFields( COLUMN_FIELDS.length, out );
+      printStudentFields( data, ss, out.appendDelimiter() );
+      printEmptyFields( GRADE_FIELDS.length, out );
+      out.endRow();
+    }
+    return columns.size() + data.getStudentCount();
+  }
+
+  private void printEmptyFields( int count, RowWriter out )
+  {
+    for ( int ii = 0; ii < count; ii++ ) {
+      out.appendDelimiter();
+    }
+  }
+
+  /* The student's fields and grade in a column, ending the row. */
+  private void printStudentRow( CourseData data, int cc, int ss, RowWriter out )
+  {
+    printStudentFields( data, ss, out );
+    int score = data.getColumnScore( cc, ss );
+    for ( int field = 0; field < GRADE_FIELDS.length; field++ ) {
+      out.appendDelimiter();
+      printGradeField( data.getScores(), score, field, out );
+    }
+    out.endRow();
+  }
+
+  private void printCourseFields( CourseVO course, RowWriter out )
+  {
+    out.append( course.getCourseId() ).appendDelimiter();
+    out.append( course.getBatchUid() ).appendDelimiter();
+    out.append( course.getId() ).appendDelimiter();
+    out.append( course.getName() ).appendDelimiter();
+    out.append( course.getCourseServiceLevel() ).appendDelimiter();
+    out.append( course.getAvailable() );
+  }
+
+  private void printColumnFields( CourseSnapshot.Columns columns, int cc, RowWriter out )
+  {
+    out.append( columns._displayName[ cc ] ).appendDelimiter();
+    out.append( columns._id[ cc ] ).appendDelimiter();
+    out.appendFlag( columns._externalGrade[ cc ] ).appendDelimiter();
+    out.appendFlag( columns._deleted[ cc ] ).appendDelimiter();
+    out.append( columns._position[ cc ] ).appendDelimiter();
+    out.append( columns._aggregationModel[ cc ] ).appendDelimiter();
+    out.append( columns._calculationType[ cc ] ).appendDelimiter();
+    out.append( columns._dueDate[ cc ] ).appendDelimiter();
+    out.append( columns._multipleAttempts[ cc ] ).appendDelimiter();
+    out.append( columns._possible[ cc ] ).appendDelimiter();
+    out.appendFlag( columns._scorable[ cc ] ).appendDelimiter();
+    out.appendFlag( columns._visible[ cc ] );
+  }
+
+  /* The user and enrollment fields of a student. */
+  private void printStudentFields( CourseData data, int ss, RowWriter out )
+  {
+    CourseSnapshot.Users users = data.getUsers();
+    CourseSnapshot.Members members = data.getMembers();
+    int uu = data.getStudentUser( ss );
+    int mm = data.getStudentMember( ss );
+
+    out.append( users._name.get( uu ) ).appendDelimiter();
+    out.append( users._batchUid.get( uu ) ).appendDelimiter();
+    out.append( users._id.get( uu ) ).appendDelimiter();
+    out.appendFlag( users._available[ uu ] ).appendDelimiter();
+    out.append( users._studentId.get( uu ) ).appendDelimiter();
+
+    out.append( members._id.get( mm ) ).appendDelimiter();
+    out.appendFlag( members._available[ mm ] ).appendDelimiter();
+    out.appendDate( members._enrollmentDate[ mm ] );
+  }
+
+  /* One of the GRADE_FIELDS of a score, empty where there is no score. */
+  private void printGradeField( CourseSnapshot.Scores scores, int score, int field, RowWriter out )
+  {
+    if ( score < 0 ) {
+      return;
+    }
+    switch ( field ) {
+      case 0: out.append( scores._schemaGradeValue.get( score ) ); break;
+      case 1: out.append( scores._grade.get( score ) ); break;
+      case 2: out.append( scores._id.get( score ) ); break;
+      case 3: out.append( scores._manualGrade.get( score ) ); break;
+      case 4: out.append( scores._manualScore[ score ] ); break;
+      default: out.append( scores._status[ score ] ); break;
+    }
+  }
+
+  /* Adds the rows of a course to the columnar export, the same rows as the long format. */
+  private void exportCourse( CourseData data )
+  {
+    if ( 0 == data.getRowCount() ) {
+      return;
+    }
+    CourseVO course = data.getCourse();
+    CourseSnapshot.Columns columns = data.getColumns();
+    CourseSnapshot.Users users = data.getUsers();
+    CourseSnapshot.Members members = data.getMembers();
+    CourseSnapshot.Scores scores = data.getScores();
+    ColumnarWriter out = _columnar;
+    try {
+      for ( int cc = 0; cc < columns.size(); cc++ ) {
+        for ( int ss = 0; ss < data.getStudentCount(); ss++ ) {
+          int score = data.getColumnScore( cc, ss );
+          if ( _sparseOutput && (score < 0) ) {
+            continue;
+          }
+          int uu = data.getStudentUser( ss );
+          int mm = data.getStudentMember( ss );
+          int ff = 0;
+          out.setString( ff++, course.getCourseId() );
+          out.setString( ff++, course.getBatchUid() );
+          out.setString( ff++, course.getId() );
+          out.setString( ff++, course.getName() );
+          out.setString( ff++, course.getCourseServiceLevel() );
+          out.setBoolean( ff++, course.getAvailable() );
+
+          out.setString( ff++, columns._displayName[ cc ] );
+          out.setString( ff++, columns._id[ cc ] );
+          out.setBoolean( ff++, columns._externalGrade[ cc ] );
+          out.setBoolean( ff++, columns._deleted[ cc ] );
+          out.setInt( ff++, columns._position[ cc ] );
+          out.setString( ff++, columns._aggregationModel[ cc ] );
+          out.setString( ff++, columns._calculationType[ cc ] );
+          out.setLong( ff++, columns._dueDate[ cc ] );
+          out.setInt( ff++, columns._multipleAttempts[ cc ] );
+          out.setDouble( ff++, columns._possible[ cc ] );
+          out.setBoolean( ff++, columns._scorable[ cc ] );
+          out.setBoolean( ff++, columns._visible[ cc ] );
+
+          out.setString( ff++, users._name.get( uu ) );
+          out.setString( ff++, users._batchUid.get( uu ) );
+          out.setString( ff++, users._id.get( uu ) );
+          out.setBoolean( ff++, users._available[ uu ] );
+          out.setString( ff++, users._studentId.get( uu ) );
+          out.setString( ff++, members._id.get( mm ) );
+          out.setBoolean( ff++, members._available[ mm ] );
+          out.setLong( ff++, members._enrollmentDate[ mm ] );
+
+          if ( score < 0 ) {
+            while ( ff < COLUMNAR_FIELDS.length ) {
+              out.setNull( ff++ );
+            }
+          }
+          else {
+            out.setString( ff++, scores._schemaGradeValue.get( score ) );
+            out.setString( ff++, scores._grade.get( score ) );
+            out.setString( ff++, scores._id.get( score ) );
+            out.setString( ff++, scores._manualGrade.get( score ) );
+            out.setDouble( ff++, scores._manualScore[ score ] );
+            out.setInt( ff++, scores._status[ score ] );
+          }
+          out.endRow();
+        }
+      }
+    }
+    catch( IOException e ) {
+      // The report goes on without it, the incomplete export is deleted at the end.
+      String message = "Failed to write the columnar export: " + e.getMessage();
+      _errors.add( message );
+      _LOG.error( message, e );
+      _columnar = null;
+      out.abort();
+    }
+  }
+
+  /*
+   * Renders a course in the wide format: a COURSE row, a COLUMN row for each
+   * column, then a STUDENT row for each student with their grades in every
+   * column, in the order of the COLUMN rows.  Like the long format, a course
+   * without rows (no students or no columns) isn't written at all.
+   */
+  private void formatWide( CourseData data, RowWriter rowOut, BlockingQueue<ReportChunk> writeQueue )
+    throws InterruptedException
+  {
+    long start = System.nanoTime();
+    boolean failed = data.isFailed();
+    int rows = 0;
+    rowOut.reset();
+    try {
+      if ( data.getRowCount() > 0 ) {
+        CourseSnapshot.Columns columns = data.getColumns();
+        rowOut.append( WIDE_COURSE ).appendDelimiter();
+        printCourseFields( data.getCourse(), rowOut );
+        rowOut.endRow();
+        for ( int cc = 0; cc < columns.size(); cc++ ) {
+          rowOut.append( WIDE_COLUMN ).appendDelimiter();
+          printColumnFields( columns, cc, rowOut );
+          rowOut.endRow();
+        }
+        for ( int ss = 0; ss < data.getStudentCount(); ss++, rows++ ) {
+          if ( rowOut.length() >= WIDE_CHUNK_BYTES ) {
+            writeQueue.put( new ReportChunk( data.getSequence(), rowOut.toByteArray(), false, false ) );
+            rowOut.reset();
+          }
+          rowOut.append( WIDE_STUDENT ).appendDelimiter();
+          printStudentFields( data, ss, rowOut );
+          for ( int cc = 0; cc < columns.size(); cc++ ) {
+            int score = data.getColumnScore( cc, ss );
+            for ( int field : _wideGradeFields ) {
+              rowOut.appendDelimiter();
+              printGradeField( data.getScores(), score, field, rowOut );
+            }
+          }
+          rowOut.endRow();
+        }
+      }
+    }
+    catch( RuntimeException e ) {
+      // Keep the rows written so far, as the long format does.
+      String message = "Error processing course [" + data.getCourse().getCourseId() + "]: " + e.getMessage();
+      _errors.add( message );
+      _LOG.error( message, e );
+      failed = true;
+    }
+    _formatStats.record( rows, start );
+    writeQueue.put( new ReportChunk( data.getSequence(), rowOut.toByteArray(), true, failed ) );
+  }
+
+  /* Formatted rows of a course, passed from the format stage to the write stage. */
+  private static class ReportChunk
+  {
+    /* Marks the end of the chunks in the write queue. */
+    private static final ReportChunk END = new ReportChunk( -1, null, true, false );
+
+    private final int _sequence;
+    private final byte[] _bytes;
+    private final boolean _last;
+    private final boolean _failed; // The course had errors, set with _last.
+
+    // Where the bytes are in the spill file, if they have been spilled.
+    private final long _spillOffset;
+    private final int _spillLength;
+
+    private ReportChunk( int sequence, byte[] bytes, boolean last, boolean failed ) {
+      _sequence = sequence;
+      _bytes = bytes;
+      _last = last;
+      _failed = failed;
+      _spillOffset = -1;
+      _spillLength = 0;
+    }
+
+    private ReportChunk( int sequence, long spillOffset, int spillLength, boolean last, boolean failed ) {
+      _sequence = sequence;
+      _bytes = null;
+      _last = last;
+      _failed = failed;
+      _spillOffset = spillOffset;
+      _spillLength = spillLength;
+    }
+
+    private boolean isSpilled() {
+      return _spillOffset >= 0;
+    }
   }
 }
@@ -0,0 +1,101 @@
+package blackboard.ws.client;
+
+import java.util.Arrays;
+
+/**
+ * Maps Learn PK ids (e.g. "_123456_1") to small int keys, numbered from 0 in
+ * the order they are first seen, so the joins of a course can be done on
+ * primitive keys (see {@link LongIntMap}) instead of hashing and comparing the
+ * strings again for every lookup.  Each string is hashed once, when it is
+ * looked up here.
+ *
+ * The table is open addressing with linear probing over plain arrays, so an
+ * entry costs a slot and a reference rather than a HashMap entry and a boxed
+ * Integer.  One dictionary is reused for every course joined on a thread:
+ * {@link #clear()} keeps its arrays, so after the first large course the
+ * joins allocate nothing here, and empties only the slots in use, so a small
+ * course doesn't pay for clearing the table of the largest one.  Not thread
+ * safe.
+ *
+ * The keys are per course, not per run.  The joins only ever match ids
+ * within one course, so a run-wide dictionary would buy nothing, and it
+ * would hold every user, membership and column id of the run (millions of
+ * strings on a large system) until the end, where clearing between courses
+ * keeps the table the size of the largest course.
+ */
+class IdDictionary
+{
+  private static final int MIN_CAPACITY = 1024; // Power of 2
+
+  // Slot -> key + 1, 0 where empty.
+  private int[] _slots = new int[ MIN_CAPACITY ];
+  // Key -> id
+  private String[] _ids = new String[ MIN_CAPACITY / 2 ];
+  // Key -> its slot
+  private int[] _slotOf = new int[ MIN_CAPACITY / 2 ];
+  private int _size = 0;
+
+  /* The key of an id, adding it if it hasn't been seen since the last clear. */
+  int key( String id )
+  {
+    int mask = _slots.length - 1;
+    for ( int slot = spread( id.hashCode() ) & mask; ; slot = (slot + 1) & mask ) {
+      int entry = _slots[ slot ];
+      if ( 0 == entry ) {
+        if ( _size == _ids.length ) {
+          grow();
+          return key( id );
+        }
+        _ids[ _size ] = id;
+        _slotOf[ _size ] = slot;
+        _slots[ slot ] = ++_size;
+        return _size - 1;
+      }
+      if ( id.equals( _ids[ entry - 1 ] ) ) {
+        return entry - 1;
+      }
+    }
+  }
+
+  int size() {
+    return _size;
+  }
+
+  /* Forgets every id, keeping the tables for the next course. */
+  void clear()
+  {
+    if ( 0 == _size ) {
+      return;
+    }
+    for ( int key = 0; key < _size; key++ ) {
+      _slots[ _slotOf[ key ] ] = 0;
+    }
+    Arrays.fill( _ids, 0, _size, null );
+    _size = 0;
+  }
+
+  // Kept at most half full, so the probes stay short.
+  private void grow()
+  {
+    int[] slots = new int[ _slots.length * 2 ];
+    int mask = slots.length - 1;
+    for ( int key = 0; key < _size; key++ ) {
+      int slot = spread( _ids[ key ].hashCode() ) & mask;
+      while ( 0 != slots[ slot ] ) {
+        slot = (slot + 1) & mask;
+      }
+      slots[ slot ] = key + 1;
+      _slotOf[ key ] = slot;
+    }
+    _slots = slots;
+    _ids = Arrays.copyOf( _ids, slots.length / 2 );
+    _slotOf = Arrays.copyOf( _slotOf, slots.length / 2 );
+  }
+
+  // PK ids differ mostly in their last few characters, so mix the hash
+  // before masking it.
+  private static int spread( int hash ) {
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -0,0 +1,361 @@
+package blackboard.ws.client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A directory shared by several extract processes (on one machine or on
+ * several, over a shared file system) so they can work on one run together.
+ *
+ * Each course is claimed by creating its lease file, which only one process
+ * can do.  The holder touches its leases every renewal interval, and a lease
+ * that hasn't been touched for the expiry interval belongs to a process that
+ * has died, so another process takes the course over.  Takeovers hold a lock
+ * on a file in the lease directory while they check the lease again and
+ * rewrite it in place, so of several processes that see a lease expire only
+ * the first takes it over, the others find it renewed.  (Across machines
+ * this needs a shared file system with working locks, e.g. NFSv4.)
+ *
+ * Every process writes the courses it claims to its own report file, and
+ * appends an entry (offset and length of the course) to its own index once a
+ * course is complete in that file, then marks the course done.  Whatever a
+ * process wrote for a course it didn't finish (or failed to write, see
+ * {@link #release}) is never indexed, so a course taken over is simply
+ * written again by the new holder.  Once every course
+ * is done, the first process to claim the merge copies the indexed courses
+ * from all the report files into the final report in courseId order.  The
+ * merge is leased like a course, and the other processes wait for it to be
+ * done, so if the merging process dies one of them takes the merge over.
+ *
+ * Layout:
+ *   leases/   one lease file per course (named by course PK) while claimed
+ *   done/     one marker per completed course
+ *   workers/  each process's report (.out) and index (.idx)
+ *
+ * The clocks of the machines involved need to roughly agree, as leases
+ * expire by their last modified time.  Use a new (or emptied) directory for
+ * every run.
+ */
+class LeaseDirectory
+{
+  private static final org.apache.commons.logging.Log _LOG = //
+    org.apache.commons.logging.LogFactory.getLog( LeaseDirectory.class );
+
+  private static final String MERGE_LEASE = "merge";
+  private static final String TAKEOVER_LOCK = ".takeover.lock";
+
+  private final File _leaseDir;
+  private final File _doneDir;
+  private final File _workerDir;
+  private final String _workerId;
+  private final long _renewMillis;
+  private final long _expireMillis;
+
+  // Leases held by this process, renewed in the background.
+  private final Set<String> _held = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+  private final ScheduledExecutorService _renewal = new ScheduledThreadPoolExecutor( 1 );
+
+  private OutputStream _index;
+
+  // Where the next course starts in this process's report.
+  private long _courseStart;
+
+  LeaseDirectory( File dir, String workerId, long renewMillis, long expireMillis )
+  {
+    _leaseDir = new File( dir, "leases" );
+    _doneDir = new File( dir, "done" );
+    _workerDir = new File( dir, "workers" );
+    _workerId = workerId.replaceAll( "[^A-Za-z0-9._-]", "_" );
+    _renewMillis = renewMillis;
+    _expireMillis = expireMillis;
+  }
+
+  String getWorkerId() {
+    return _workerId;
+  }
+
+  /* The report file this process writes its courses to, appended to if it is restarted. */
+  File getReportFile() {
+    return new File( _workerDir, _workerId + ".out" );
+  }
+
+  /* Creates the directories and starts renewing the leases of this process. */
+  void start() throws IOException
+  {
+    for ( File dir : new File[] { _leaseDir, _doneDir, _workerDir } ) {
+      dir.mkdirs();
+      if ( !dir.isDirectory() ) {
+        throw new IOException( "Failed to create lease directory [" + dir + "]." );
+      }
+    }
+    _index = new FileOutputStream( new File( _workerDir, _workerId + ".idx" ), true );
+    _courseStart = getReportFile().length();
+    _renewal.scheduleWithFixedDelay( new Runnable() {
+      public void run() {
+        renewLeases();
+      }
+    }, _renewMillis, _renewMillis, TimeUnit.MILLISECONDS );
+  }
+
+  /* Stops renewing, the leases still held are left to expire. */
+  void close()
+  {
+    _renewal.shutdownNow();
+    if ( null != _index ) {
+      try {
+        _index.close();
+      }
+      catch( IOException e ) {
+        _LOG.error( e.getMessage(), e );
+      }
+    }
+  }
+
+  boolean isDone( String coursePkId ) {
+    return new File( _doneDir, coursePkId ).exists();
+  }
+
+  /* Claims a course for this process, taking over its lease if the holder has died. */
+  boolean claim( String coursePkId ) throws IOException
+  {
+    if ( isDone( coursePkId ) ) {
+      return false;
+    }
+    File lease = new File( _leaseDir, coursePkId );
+    if ( lease.createNewFile() ) {
+      writeOwner( lease );
+    }
+    else if ( (System.currentTimeMillis() - lease.lastModified() < _expireMillis) || !takeOver( coursePkId, lease ) ) {
+      return false;
+    }
+    _held.add( coursePkId );
+    return true;
+  }
+
+  /*
+   * Takes over a lease that looked expired, if it still is once the takeover
+   * lock is held.  The lease is rewritten in place rather than replaced, so
+   * it never goes missing for another process to create afresh.
+   */
+  private synchronized boolean takeOver( String coursePkId, File lease ) throws IOException
+  {
+    FileChannel lock = new RandomAccessFile( new File( _leaseDir, TAKEOVER_LOCK ), "rw" ).getChannel();
+    try {
+      lock.lock(); // Released when the channel is closed, or the process dies
+      if ( isDone( coursePkId ) || !lease.exists() ) {
+        return false;
+      }
+      long age = System.currentTimeMillis() - lease.lastModified();
+      if ( age < _expireMillis ) {
+        return false; // Taken over (or renewed) since it was checked.
+      }
+      String owner = readOwner( lease );
+      writeOwner( lease );
+      _LOG.warn( "Took over [" + coursePkId + "] from worker [" + owner + "], its lease expired [" + (age / 1000) + "] seconds ago." );
+      return true;
+    }
+    finally {
+      lock.close();
+    }
+  }
+
+  /*
+   * Records a course as complete in this process's report, from where the
+   * last course committed or released ended up to end, and marks it done.
+   */
+  synchronized void commit( String coursePkId, String courseId, long end ) throws IOException
+  {
+    long start = _courseStart;
+    _courseStart = end;
+    try {
+      String entry = coursePkId + "\t" + start + "\t" + (end - start) + "\t" + courseId + "\n";
+      _index.write( entry.getBytes( "UTF-8" ) );
+      _index.flush();
+      markDone( coursePkId );
+    }
+    finally {
+      // If it couldn't be committed, the lease expires and the course is
+      // taken over (possibly by this process).
+      _held.remove( coursePkId );
+    }
+  }
+
+  /*
+   * Gives up a course that failed to be written to this process's report,
+   * up to end: its bytes are skipped, and its lease is no longer renewed so
+   * it expires and another process takes the course over.
+   */
+  synchronized void release( String coursePkId, long end )
+  {
+    _courseStart = end;
+    _held.remove( coursePkId );
+  }
+
+  /*
+   * Merges the courses of every worker into the report, in courseId order,
+   * if this process is the first to claim the merge.  Only to be called
+   * once every course is done.  Otherwise waits for the merge to be done,
+   * taking it over if the process merging dies, and returns false once
+   * another process has merged the report.
+   */
+  boolean merge( WritableByteChannel report, byte[] header ) throws IOException
+  {
+    boolean waiting = false;
+    while ( !claim( MERGE_LEASE ) ) {
+      if ( isDone( MERGE_LEASE ) ) {
+        _LOG.info( "Another worker merged the report." );
+        return false;
+      }
+      if ( !waiting ) {
+        _LOG.info( "Another worker is merging the report, waiting for it to finish." );
+        waiting = true;
+      }
+      try {
+        Thread.sleep( _renewMillis );
+      }
+      catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException( "Interrupted while waiting for the report to be merged." );
+      }
+    }
+
+    // Courses completed by more than one worker (e.g. taken over from one
+    // that was only slow) are taken from the first index they appear in.
+    Map<String, IndexEntry> entries = new HashMap<String, IndexEntry>();
+    File[] indexes = _workerDir.listFiles( new FilenameFilter() {
+      public boolean accept( File dir, String name ) {
+        return name.endsWith( ".idx" );
+      }
+    } );
+    Arrays.sort( indexes );
+    for ( File index : indexes ) {
+      String name = index.getName();
+      File workerReport = new File( _workerDir, name.substring( 0, name.length() - ".idx".length() ) + ".out" );
+      BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( index ), "UTF-8" ) );
+      try {
+        for ( String line = in.readLine(); null != line; line = in.readLine() ) {
+          String[] fields = line.split( "\t", 4 );
+          if ( fields.length < 4 ) {
+            continue; // Cut short by a crash before the course was marked done.
+          }
+          if ( !entries.containsKey( fields[ 0 ] ) ) {
+            entries.put( fields[ 0 ], new IndexEntry( workerReport, Long.parseLong( fields[ 1 ] ), Long.parseLong( fields[ 2 ] ), fields[ 3 ] ) );
+          }
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    List<IndexEntry> courses = new ArrayList<IndexEntry>( entries.values() );
+    Collections.sort( courses, new Comparator<IndexEntry>() {
+      public int compare( IndexEntry o1, IndexEntry o2 ) {
+        return o1._courseId.compareTo( o2._courseId );
+      }
+    } );
+
+    _LOG.info( "Merging [" + courses.size() + "] courses from [" + indexes.length + "] workers into the report." );
+    writeFully( report, ByteBuffer.wrap( header ) );
+    Map<File, FileChannel> sources = new HashMap<File, FileChannel>();
+    try {
+      for ( IndexEntry course : courses ) {
+        FileChannel source = sources.get( course._report );
+        if ( null == source ) {
+          source = new FileInputStream( course._report ).getChannel();
+          sources.put( course._report, source );
+        }
+        for ( long copied = 0; copied < course._length; ) {
+          long count = source.transferTo( course._offset + copied, course._length - copied, report );
+          if ( count <= 0 ) {
+            throw new IOException( "Worker report [" + course._report + "] is shorter than its index for course [" + course._courseId + "]." );
+          }
+          copied += count;
+        }
+      }
+    }
+    finally {
+      for ( FileChannel source : sources.values() ) {
+        source.close();
+      }
+      _held.remove( MERGE_LEASE );
+    }
+    markDone( MERGE_LEASE );
+    return true;
+  }
+
+  private void markDone( String name ) throws IOException
+  {
+    new File( _doneDir, name ).createNewFile();
+    new File( _leaseDir, name ).delete();
+  }
+
+  private void renewLeases()
+  {
+    long now = System.currentTimeMillis();
+    for ( String name : _held ) {
+      File lease = new File( _leaseDir, name );
+      if ( !lease.setLastModified( now ) ) {
+        _LOG.warn( "Failed to renew the lease of [" + name + "], another worker may take it over." );
+      }
+    }
+  }
+
+  private void writeOwner( File lease ) throws IOException
+  {
+    Writer out = new OutputStreamWriter( new FileOutputStream( lease ), "UTF-8" );
+    try {
+      out.write( _workerId );
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private String readOwner( File lease )
+  {
+    try {
+      BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( lease ), "UTF-8" ) );
+      try {
+        String owner = in.readLine();
+        return (null == owner) ? "unknown" : owner; // Died before writing it
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch( IOException e ) {
+      return "unknown";
+    }
+  }
+
+  private static void writeFully( WritableByteChannel channel, ByteBuffer buffer ) throws IOException
+  {
+    while ( buffer.hasRemaining() ) {
+      channel.write( buffer );
+    }
+  }
+
+  /* Where a completed course is in a worker's report. */
+  private static class IndexEntry
+  {
+    private final File _report;
+    private final long _offset;
+    private final long _length;
+    private final String _courseId;
+
+    private IndexEntry( File report, long offset, long length, String courseId ) {
+      _report = report;
+      _offset = offset;
+      _length = length;
+      _courseId = courseId;
+    }
+  }
+}
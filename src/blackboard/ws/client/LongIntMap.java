@@ -0,0 +1,109 @@
+package blackboard.ws.client;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map of non-negative long keys to int values (e.g. array
+ * indexes), without boxing either.  Sized up front for the number of entries
+ * expected, and grows if there are more.  Not thread safe.
+ */
+class LongIntMap
+{
+  private static final long EMPTY = -1L;
+
+  private long[] _keys;
+  private int[] _values;
+  private int _size = 0;
+
+  LongIntMap( int expected )
+  {
+    int capacity = 16;
+    while ( capacity < 2 * expected ) {
+      capacity <<= 1;
+    }
+    _keys = new long[ capacity ];
+    _values = new int[ capacity ];
+    Arrays.fill( _keys, EMPTY );
+  }
+
+  /* Two int keys (e.g. from an IdDictionary) as one long key. */
+  static long key( int high, int low ) {
+    return ((long) high << 32) | (low & 0xFFFFFFFFL);
+  }
+
+  /* Maps the key to the value, replacing any previous value. */
+  void put( long key, int value ) {
+    put( key, value, true );
+  }
+
+  /* Maps the key to the value unless it is already mapped. */
+  void putIfAbsent( long key, int value ) {
+    put( key, value, false );
+  }
+
+  /* The value of the key, or the given default if it isn't mapped. */
+  int get( long key, int defaultValue )
+  {
+    int mask = _keys.length - 1;
+    for ( int slot = spread( key ) & mask; ; slot = (slot + 1) & mask ) {
+      long slotKey = _keys[ slot ];
+      if ( slotKey == key ) {
+        return _values[ slot ];
+      }
+      if ( slotKey == EMPTY ) {
+        return defaultValue;
+      }
+    }
+  }
+
+  int size() {
+    return _size;
+  }
+
+  private void put( long key, int value, boolean replace )
+  {
+    int mask = _keys.length - 1;
+    for ( int slot = spread( key ) & mask; ; slot = (slot + 1) & mask ) {
+      long slotKey = _keys[ slot ];
+      if ( slotKey == key ) {
+        if ( replace ) {
+          _values[ slot ] = value;
+        }
+        return;
+      }
+      if ( slotKey == EMPTY ) {
+        _keys[ slot ] = key;
+        _values[ slot ] = value;
+        if ( ++_size * 2 > _keys.length ) {
+          grow();
+        }
+        return;
+      }
+    }
+  }
+
+  private void grow()
+  {
+    long[] keys = _keys;
+    int[] values = _values;
+    _keys = new long[ keys.length * 2 ];
+    _values = new int[ keys.length * 2 ];
+    Arrays.fill( _keys, EMPTY );
+    int mask = _keys.length - 1;
+    for ( int ii = 0; ii < keys.length; ii++ ) {
+      if ( keys[ ii ] != EMPTY ) {
+        int slot = spread( keys[ ii ] ) & mask;
+        while ( _keys[ slot ] != EMPTY ) {
+          slot = (slot + 1) & mask;
+        }
+        _keys[ slot ] = keys[ ii ];
+        _values[ slot ] = values[ ii ];
+      }
+    }
+  }
+
+  private static int spread( long key ) {
+    key *= 0x9E3779B97F4A7C15L;
+    return (int) (key ^ (key >>> 32));
+  }
+}
@@ -0,0 +1,186 @@
+package blackboard.ws.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves the string fields of the snapshots of giant courses (e.g.
+ * institution-wide orientation shells with millions of scores) off the Java
+ * heap, into direct buffers or into memory-mapped temporary files.  Millions
+ * of small strings are what make such a course expensive for the garbage
+ * collector, as every one of them is traced and copied while the course
+ * works its way through the pipeline, and the pauses stall every other
+ * worker.  The primitive fields stay in their arrays, which the collector
+ * doesn't have to look into.
+ *
+ * Each field is stored as UTF-8 behind a table of (offset, length) entries
+ * and decoded again when it is read.  A value that repeats (grades shared
+ * through the pool, the columnId of every score of a column) is stored once
+ * and its entries point at the same bytes, and each field keeps the values
+ * it decoded last by their bytes, so a value read again (the user fields of
+ * a student, for every column) mostly isn't decoded again.  The buffers are
+ * released with the snapshot that holds them, and the mapped files are
+ * deleted as soon as they are mapped.
+ */
+class OffHeapStore
+{
+  private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+  // Values remembered while copying a field, to store their repeats once.
+  private static final int RECENT_VALUES = 1024;
+
+  // Decoded values kept by each field, at most.
+  private static final int DECODED_VALUES = 4096;
+
+  // Where the mapped files go, null for direct buffers.
+  private final File _dir;
+
+  // Totals for the end of run summary
+  private final AtomicLong _courses = new AtomicLong();
+  private final AtomicLong _bytes = new AtomicLong();
+
+  OffHeapStore( File dir )
+  {
+    _dir = dir;
+  }
+
+  /* A copy of the field off the heap. */
+  CourseSnapshot.Strings copy( CourseSnapshot.Strings strings ) throws IOException
+  {
+    int count = strings.size();
+    byte[][] encoded = new byte[ count ][];
+    int[] repeats = new int[ count ]; // 1 + the entry a value repeats, 0 if none
+    String[] recent = new String[ RECENT_VALUES ];
+    int[] recentEntry = new int[ RECENT_VALUES ];
+    long size = 8L * count;
+    for ( int ii = 0; ii < count; ii++ ) {
+      String value = strings.get( ii );
+      if ( null == value ) {
+        continue;
+      }
+      int slot = value.hashCode() & (RECENT_VALUES - 1);
+      if ( value.equals( recent[ slot ] ) ) {
+        repeats[ ii ] = 1 + recentEntry[ slot ];
+        continue;
+      }
+      recent[ slot ] = value;
+      recentEntry[ slot ] = ii;
+      encoded[ ii ] = value.getBytes( UTF_8 );
+      size += encoded[ ii ].length;
+    }
+    if ( size > Integer.MAX_VALUE ) {
+      throw new IOException( "Field of [" + count + "] entries is too large to keep off heap." );
+    }
+
+    ByteBuffer buffer = allocate( (int) size );
+    int offset = 8 * count;
+    for ( int ii = 0; ii < count; ii++ ) {
+      if ( 0 != repeats[ ii ] ) {
+        buffer.putLong( 8 * ii, buffer.getLong( 8 * (repeats[ ii ] - 1) ) );
+        continue;
+      }
+      buffer.putInt( 8 * ii, offset );
+      buffer.putInt( 8 * ii + 4, (null == encoded[ ii ]) ? -1 : encoded[ ii ].length );
+      if ( null != encoded[ ii ] ) {
+        buffer.position( offset );
+        buffer.put( encoded[ ii ] );
+        offset += encoded[ ii ].length;
+      }
+    }
+    buffer.clear();
+    _bytes.addAndGet( size );
+    return new OffHeapStrings( buffer, count );
+  }
+
+  /* Records a course as kept off heap. */
+  void recordCourse() {
+    _courses.incrementAndGet();
+  }
+
+  String summary()
+  {
+    return "Off heap: " + _courses.get() + " courses, " + (_bytes.get() / 1024L) + " KB of fields in "
+      + ((null == _dir) ? "direct buffers" : "files mapped from [" + _dir + "]");
+  }
+
+  private ByteBuffer allocate( int size ) throws IOException
+  {
+    if ( null == _dir ) {
+      return ByteBuffer.allocateDirect( size );
+    }
+    File file = File.createTempFile( "gradeextract", ".offheap", _dir );
+    RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    try {
+      raf.setLength( size );
+      return raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+    }
+    finally {
+      raf.close();
+      // The mapping outlives the file's name (except on Windows, where it is
+      // removed at exit).
+      if ( !file.delete() ) {
+        file.deleteOnExit();
+      }
+    }
+  }
+
+  /* A field in a buffer: an (offset, length) entry per string, length -1 for null, then the UTF-8. */
+  private static class OffHeapStrings extends CourseSnapshot.Strings
+  {
+    private final ByteBuffer _buffer;
+    private final int _count;
+
+    // The values decoded last, by where their bytes are.  Read by the
+    // pipeline's threads without locking, which only costs a decode now and
+    // then as the entries themselves are immutable.
+    private final Decoded[] _decoded;
+
+    private OffHeapStrings( ByteBuffer buffer, int count ) {
+      _buffer = buffer;
+      _count = count;
+      _decoded = new Decoded[ Integer.highestOneBit( Math.max( 1, Math.min( count, DECODED_VALUES ) ) ) ];
+    }
+
+    String get( int ii )
+    {
+      long entry = _buffer.getLong( 8 * ii );
+      int offset = (int) (entry >>> 32);
+      int length = (int) entry;
+      if ( length < 0 ) {
+        return null;
+      }
+      int slot = (int) ((entry * 0x9E3779B97F4A7C15L) >>> 40) & (_decoded.length - 1);
+      Decoded decoded = _decoded[ slot ];
+      if ( (null != decoded) && (decoded._entry == entry) ) {
+        return decoded._value;
+      }
+      byte[] bytes = new byte[ length ];
+      ByteBuffer source = _buffer.duplicate();
+      source.position( offset );
+      source.get( bytes );
+      String value = new String( bytes, UTF_8 );
+      _decoded[ slot ] = new Decoded( entry, value );
+      return value;
+    }
+
+    int size() {
+      return _count;
+    }
+  }
+
+  private static class Decoded
+  {
+    private final long _entry;
+    private final String _value;
+
+    private Decoded( long entry, String value ) {
+      _entry = entry;
+      _value = value;
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package blackboard.ws.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses the report on all cores as it is written.  The bytes are cut
+ * into blocks, each block is compressed on its own into a complete gzip
+ * member by a pool of compressors, and a single thread writes the members
+ * out in order.  Concatenated gzip members are a valid gzip file (gunzip,
+ * zcat and GZIPInputStream read them as one stream), so the result needs no
+ * extra step to be read, and the part of the report written so far is valid
+ * up to the last complete member.
+ *
+ * The thread writing into the stream only copies into the current block and
+ * hands full blocks off, it never compresses.  It only waits once the
+ * maximum number of blocks are already being compressed or written, i.e.
+ * when the compressors or the disk can't keep up, so memory stays bounded.
+ *
+ * Not thread safe: one thread writes, flushes and closes.
+ */
+class ParallelGzipOutputStream extends OutputStream
+{
+  private final OutputStream _out;
+  private final int _blockSize;
+  private final int _threads;
+  private final ExecutorService _compressors;
+  private final ExecutorService _writer;
+  private final int _maxBlocksInFlight;
+  private final Semaphore _blocksInFlight;
+
+  // Blocks compressed and written, ready to be filled again.
+  private final Queue<byte[]> _freeBlocks = new ConcurrentLinkedQueue<byte[]>();
+
+  private byte[] _block;
+  private int _length = 0;
+  private volatile IOException _failure;
+  private boolean _closed = false;
+
+  // Totals for the end of run summary
+  private long _bytesIn = 0;
+  private long _blocks = 0;
+  private long _waitNanos = 0;
+  private final AtomicLong _bytesOut = new AtomicLong();
+
+  ParallelGzipOutputStream( OutputStream out, int blockSize, int threads )
+  {
+    _out = out;
+    _blockSize = Math.max( 64 * 1024, blockSize );
+    _threads = Math.max( 1, threads );
+    _compressors = Executors.newFixedThreadPool( _threads, daemonThreads( "gzip-compress" ) );
+    _writer = Executors.newSingleThreadExecutor( daemonThreads( "gzip-write" ) );
+    _maxBlocksInFlight = 2 * _threads + 1;
+    _blocksInFlight = new Semaphore( _maxBlocksInFlight );
+    _block = new byte[ _blockSize ];
+  }
+
+  @Override
+  public void write( int b ) throws IOException
+  {
+    if ( _length == _blockSize ) {
+      submitBlock();
+    }
+    _block[ _length++ ] = (byte) b;
+  }
+
+  @Override
+  public void write( byte[] bytes, int offset, int length ) throws IOException
+  {
+    while ( length > 0 ) {
+      if ( _length == _blockSize ) {
+        submitBlock();
+      }
+      int count = Math.min( length, _blockSize - _length );
+      System.arraycopy( bytes, offset, _block, _length, count );
+      _length += count;
+      offset += count;
+      length -= count;
+    }
+  }
+
+  /* Compresses and writes out everything written so far, ending the current block early. */
+  @Override
+  public void flush() throws IOException
+  {
+    if ( _length > 0 ) {
+      submitBlock();
+    }
+    awaitWritten();
+    _out.flush();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if ( _closed ) {
+      return;
+    }
+    _closed = true;
+    try {
+      flush();
+    }
+    finally {
+      _compressors.shutdownNow();
+      _writer.shutdownNow();
+      _out.close();
+    }
+  }
+
+  String summary()
+  {
+    long bytesOut = _bytesOut.get();
+    return "Compressed output: " + (_bytesIn / 1024) + " KB to " + (bytesOut / 1024) + " KB"
+      + ((bytesOut > 0) ? String.format( " (%.1f:1)", (double) _bytesIn / bytesOut ) : "")
+      + " in " + _blocks + " blocks on " + _threads + " threads, " + (_waitNanos / 1000000L) + " ms spent waiting for the compressors";
+  }
+
+  /* Hands the current block to the compressors, and its compressed member to the writer. */
+  private void submitBlock() throws IOException
+  {
+    checkFailure();
+    long start = System.nanoTime();
+    try {
+      _blocksInFlight.acquire();
+    }
+    catch( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while waiting for the compressors." );
+    }
+    _waitNanos += System.nanoTime() - start;
+
+    final byte[] block = _block;
+    final int length = _length;
+    _bytesIn += length;
+    _blocks++;
+    byte[] free = _freeBlocks.poll();
+    _block = (null == free) ? new byte[ _blockSize ] : free;
+    _length = 0;
+
+    final Future<byte[]> member = _compressors.submit( new Callable<byte[]>() {
+      public byte[] call() throws IOException {
+        try {
+          return compress( block, length );
+        }
+        finally {
+          _freeBlocks.add( block );
+        }
+      }
+    } );
+    _writer.submit( new Runnable() {
+      public void run() {
+        try {
+          if ( null == _failure ) {
+            byte[] bytes = member.get();
+            _out.write( bytes );
+            _bytesOut.addAndGet( bytes.length );
+          }
+        }
+        catch( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          _failure = new InterruptedIOException( "Interrupted while writing compressed output." );
+        }
+        catch( ExecutionException e ) {
+          _failure = new IOException( "Failed to compress output: " + e.getCause(), e.getCause() );
+        }
+        catch( IOException e ) {
+          _failure = e;
+        }
+        finally {
+          _blocksInFlight.release();
+        }
+      }
+    } );
+  }
+
+  /* Waits until every block handed off has been written. */
+  private void awaitWritten() throws IOException
+  {
+    try {
+      _blocksInFlight.acquire( _maxBlocksInFlight );
+      _blocksInFlight.release( _maxBlocksInFlight );
+    }
+    catch( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while waiting for compressed output to be written." );
+    }
+    checkFailure();
+  }
+
+  private void checkFailure() throws IOException
+  {
+    if ( null != _failure ) {
+      throw _failure;
+    }
+  }
+
+  private static byte[] compress( byte[] block, int length ) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream( Math.max( 1024, length / 4 ) );
+    GZIPOutputStream member = new GZIPOutputStream( bytes, 64 * 1024 );
+    member.write( block, 0, length );
+    member.close();
+    return bytes.toByteArray();
+  }
+
+  private static ThreadFactory daemonThreads( final String name )
+  {
+    return new ThreadFactory() {
+      public Thread newThread( Runnable task ) {
+        Thread thread = new Thread( task, name );
+        thread.setDaemon( true );
+        return thread;
+      }
+    };
+  }
+}
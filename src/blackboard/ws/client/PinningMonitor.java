@@ -0,0 +1,106 @@
+package blackboard.ws.client;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Reports virtual threads that block while pinned to their carrier thread,
+ * e.g. inside the synchronized blocks of the Axis2 HTTP transport or of
+ * Rampart.  A pinned thread holds on to one of the few carrier threads while
+ * it waits, so enough of them quietly cap the number of courses that really
+ * run at once, however many virtual threads there are.
+ *
+ * The pinning events come from a JFR recording stream.  The JFR classes are
+ * looked up by reflection, as the extract still builds on Java 8, so on a
+ * JDK without them the monitor simply doesn't start.
+ */
+class PinningMonitor
+{
+  private static final org.apache.commons.logging.Log _LOG = //
+    org.apache.commons.logging.LogFactory.getLog( PinningMonitor.class );
+
+  private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+  // The stacks of the first few events are logged, the rest are only counted.
+  private static final int MAX_LOGGED_EVENTS = 10;
+
+  private final AtomicLong _events = new AtomicLong();
+  private final AtomicLong _pinnedNanos = new AtomicLong();
+
+  private Object _stream; // jdk.jfr.consumer.RecordingStream
+  private Method _getDuration;
+
+  /* Starts listening for pinning, returns false if this JDK can't report it. */
+  boolean start()
+  {
+    try {
+      Class<?> streamClass = Class.forName( "jdk.jfr.consumer.RecordingStream" );
+      Class<?> settingsClass = Class.forName( "jdk.jfr.EventSettings" );
+      _getDuration = Class.forName( "jdk.jfr.consumer.RecordedEvent" ).getMethod( "getDuration" );
+
+      Object stream = streamClass.getConstructor().newInstance();
+      Object settings = streamClass.getMethod( "enable", String.class ).invoke( stream, PINNED_EVENT );
+      settingsClass.getMethod( "withStackTrace" ).invoke( settings );
+      streamClass.getMethod( "onEvent", String.class, Consumer.class ).invoke( stream, PINNED_EVENT, new Consumer<Object>() {
+        public void accept( Object event ) {
+          record( event );
+        }
+      } );
+      streamClass.getMethod( "startAsync" ).invoke( stream );
+      _stream = stream;
+      return true;
+    }
+    catch( Exception e ) {
+      _LOG.warn( "Virtual thread pinning can't be monitored on this JDK: " + e );
+      return false;
+    }
+  }
+
+  /* Stops listening, once the events recorded so far have been reported where the JDK allows it. */
+  void stop()
+  {
+    if ( null == _stream ) {
+      return;
+    }
+    try {
+      try {
+        // Java 20 and later wait for the pending events.
+        _stream.getClass().getMethod( "stop" ).invoke( _stream );
+      }
+      catch( NoSuchMethodException e ) {
+        // Earlier ones drop them.
+      }
+      _stream.getClass().getMethod( "close" ).invoke( _stream );
+    }
+    catch( Exception e ) {
+      _LOG.warn( "Failed to stop the pinning monitor: " + e );
+    }
+    _stream = null;
+  }
+
+  String summary()
+  {
+    return "Virtual thread pinning: " + _events.get() + " events, " + (_pinnedNanos.get() / 1000000L) + " ms pinned in total";
+  }
+
+  private void record( Object event )
+  {
+    long count = _events.incrementAndGet();
+    long pinnedNanos = 0;
+    try {
+      pinnedNanos = ((Duration) _getDuration.invoke( event )).toNanos();
+      _pinnedNanos.addAndGet( pinnedNanos );
+    }
+    catch( Exception e ) {
+      // Counted without its duration.
+    }
+    if ( count <= MAX_LOGGED_EVENTS ) {
+      _LOG.warn( "Virtual thread pinned to its carrier for [" + (pinnedNanos / 1000000L) + "] ms: " + event );
+      if ( count == MAX_LOGGED_EVENTS ) {
+        _LOG.warn( "Further pinning is only counted, see the summary at the end of the run." );
+      }
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package blackboard.ws.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the stages of the extract pipeline, and takes the whole pipeline down
+ * when one of them fails.  The stages are threads fed by bounded queues, so
+ * a stage that dies would otherwise leave the stages and workers upstream
+ * blocked on its full queue, and the thread submitting the courses blocked
+ * on the courses in flight, forever.
+ *
+ * The first stage (or worker) to fail aborts the pipeline: the stages and
+ * the workers are shut down (interrupting whatever they are waiting on), the
+ * queues are drained so nothing stays blocked putting into them, and the
+ * courses in flight are released so the submitting thread gets through to
+ * see the failure.  finish() then rethrows it.
+ */
+class Pipeline
+{
+  private static final org.apache.commons.logging.Log _LOG = //
+    org.apache.commons.logging.LogFactory.getLog( Pipeline.class );
+
+  // More than can ever be waiting for a course in flight.
+  private static final int RELEASED_PERMITS = 1 << 20;
+
+  private static final long POLL_MILLIS = 100;
+
+  private final ExecutorService _stages;
+  private final ExecutorService _workers;
+  private final Semaphore _coursesInFlight;
+  private final List<BlockingQueue<?>> _queues;
+  private final List<Future<Void>> _running = new ArrayList<Future<Void>>();
+  private final AtomicReference<Throwable> _failure = new AtomicReference<Throwable>();
+
+  Pipeline( int stages, ExecutorService workers, Semaphore coursesInFlight, BlockingQueue<?>... queues )
+  {
+    _stages = Executors.newFixedThreadPool( stages );
+    _workers = workers;
+    _coursesInFlight = coursesInFlight;
+    _queues = Arrays.asList( queues );
+  }
+
+  /* Starts a stage on its own thread.  Anything it throws aborts the pipeline. */
+  Future<Void> start( final String name, final Callable<Void> stage )
+  {
+    Future<Void> future = _stages.submit( new Callable<Void>() {
+      public Void call() throws Exception {
+        try {
+          return stage.call();
+        }
+        catch( Throwable t ) {
+          abort( name, t );
+          throw (t instanceof Exception) ? (Exception) t : new ExecutionException( t );
+        }
+      }
+    } );
+    _running.add( future );
+    return future;
+  }
+
+  /* Hands a task to the workers, returns false (and drops it) if the pipeline has been aborted. */
+  boolean submit( Runnable task )
+  {
+    if ( isAborted() ) {
+      return false;
+    }
+    try {
+      _workers.submit( task );
+      return true;
+    }
+    catch( RejectedExecutionException e ) {
+      if ( isAborted() ) {
+        return false; // Shut down by the abort since the check above.
+      }
+      throw e;
+    }
+  }
+
+  /* Aborts the pipeline on the first failure, later ones (mostly the interrupts of the abort itself) are ignored. */
+  void abort( String stage, Throwable cause )
+  {
+    if ( !_failure.compareAndSet( null, cause ) ) {
+      return;
+    }
+    _stages.shutdownNow();
+    _workers.shutdownNow();
+    for ( BlockingQueue<?> queue : _queues ) {
+      queue.clear();
+    }
+    _coursesInFlight.release( RELEASED_PERMITS );
+    _LOG.error( "Stage [" + stage + "] failed, aborting the extract: " + cause, cause );
+  }
+
+  boolean isAborted() {
+    return null != _failure.get();
+  }
+
+  /* Waits for the workers to finish the courses submitted, or for the pipeline to abort. */
+  void awaitWorkers() throws InterruptedException
+  {
+    _workers.shutdown();
+    while ( !_workers.awaitTermination( POLL_MILLIS, TimeUnit.MILLISECONDS ) && !isAborted() ) {
+      // Keep waiting.
+    }
+  }
+
+  /* Waits for the stages to finish, then rethrows the failure that aborted the pipeline, if any. */
+  void finish() throws IOException, InterruptedException
+  {
+    for ( Future<Void> stage : _running ) {
+      try {
+        stage.get();
+      }
+      catch( ExecutionException e ) {
+        // Recorded by the abort.
+      }
+      catch( CancellationException e ) {
+        // Never started, as the pipeline was aborted.
+      }
+    }
+    Throwable failure = _failure.get();
+    if ( null != failure ) {
+      throw new IOException( "The extract was aborted: " + failure, failure );
+    }
+  }
+
+  /* Stops whatever is still running, the pipeline is done with either way. */
+  void shutdownNow()
+  {
+    _stages.shutdownNow();
+    _workers.shutdownNow();
+  }
+}
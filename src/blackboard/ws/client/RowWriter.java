@@ -0,0 +1,192 @@
+package blackboard.ws.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Renders report rows straight into a reusable byte buffer, in place of a
+ * PrintStream over a ByteArrayOutputStream.  Fields are encoded the way
+ * PrintStream prints them (in the platform's default charset, null as
+ * "null", numbers as String.valueOf), so the report is the same byte for
+ * byte, but without PrintStream's lock and encoder on every field:
+ *
+ *  - ASCII text is copied a char at a time when the default charset
+ *    encodes ASCII as itself, anything else goes through the charset;
+ *  - ints and longs are written digit by digit, and doubles that are whole
+ *    numbers the same way, so the common values aren't boxed or turned
+ *    into Strings;
+ *  - dates are rendered once and kept in a small cache, as the students of
+ *    a course mostly share a handful of enrollment dates.
+ *
+ * Not thread safe, each format thread has its own.
+ */
+class RowWriter
+{
+  private static final int DATE_CACHE_SIZE = 256; // A power of two
+
+  // Whole doubles below this print without an exponent.
+  private static final double PLAIN_DOUBLE_LIMIT = 1e7;
+
+  private final Charset _charset = Charset.defaultCharset();
+  private final boolean _asciiCompatible;
+  private final byte[] _delimiter;
+  private final byte[] _lineSeparator;
+
+  private final SimpleDateFormat _dateFormat = new SimpleDateFormat( "yyyy/MM/dd HH:mm:ss" );
+  private final long[] _dateKeys = new long[ DATE_CACHE_SIZE ];
+  private final byte[][] _dates = new byte[ DATE_CACHE_SIZE ][];
+
+  private byte[] _buffer = new byte[ 8192 ];
+  private int _length = 0;
+
+  RowWriter( String delimiter )
+  {
+    String ascii = " !\"#$%&'()*+,-./0123456789:;<=>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[\\]^_`abcdefghijklmnopqrstuvwxyz{|}~\t\r\n";
+    byte[] encoded = ascii.getBytes( _charset );
+    boolean asciiCompatible = (encoded.length == ascii.length());
+    for ( int ii = 0; asciiCompatible && (ii < encoded.length); ii++ ) {
+      asciiCompatible = (encoded[ ii ] == ascii.charAt( ii ));
+    }
+    _asciiCompatible = asciiCompatible;
+    _delimiter = String.valueOf( delimiter ).getBytes( _charset );
+    _lineSeparator = System.getProperty( "line.separator" ).getBytes( _charset );
+  }
+
+  RowWriter append( String value )
+  {
+    if ( null == value ) {
+      value = "null";
+    }
+    if ( _asciiCompatible ) {
+      int length = value.length();
+      ensureCapacity( length );
+      byte[] buffer = _buffer;
+      int start = _length;
+      for ( int ii = 0; ii < length; ii++ ) {
+        char ch = value.charAt( ii );
+        if ( ch >= 0x80 ) {
+          // Not ASCII after all, start over with the charset.
+          _length = start;
+          return append( value.getBytes( _charset ) );
+        }
+        buffer[ start + ii ] = (byte) ch;
+      }
+      _length = start + length;
+      return this;
+    }
+    return append( value.getBytes( _charset ) );
+  }
+
+  RowWriter append( byte[] bytes ) {
+    return append( bytes, 0, bytes.length );
+  }
+
+  RowWriter append( byte[] bytes, int offset, int length )
+  {
+    ensureCapacity( length );
+    System.arraycopy( bytes, offset, _buffer, _length, length );
+    _length += length;
+    return this;
+  }
+
+  RowWriter append( boolean value ) {
+    return append( value ? "true" : "false" );
+  }
+
+  /* Y or N, the report's own booleans. */
+  RowWriter appendFlag( boolean value ) {
+    return append( value ? "Y" : "N" );
+  }
+
+  RowWriter append( int value ) {
+    return append( (long) value );
+  }
+
+  RowWriter append( long value )
+  {
+    if ( !_asciiCompatible || (Long.MIN_VALUE == value) ) {
+      return append( String.valueOf( value ) );
+    }
+    ensureCapacity( 20 );
+    if ( value < 0 ) {
+      _buffer[ _length++ ] = '-';
+      value = -value;
+    }
+    int digits = 1;
+    for ( long rest = value / 10; rest > 0; rest /= 10 ) {
+      digits++;
+    }
+    for ( int ii = _length + digits - 1; ii >= _length; ii-- ) {
+      _buffer[ ii ] = (byte) ('0' + (value % 10));
+      value /= 10;
+    }
+    _length += digits;
+    return this;
+  }
+
+  RowWriter append( double value )
+  {
+    // Whole numbers (points, manual scores) print as e.g. "10.0", the rest
+    // as Double.toString has it.
+    long whole = (long) value;
+    if ( (whole == value) && (Math.abs( value ) < PLAIN_DOUBLE_LIMIT) && !isNegativeZero( value ) ) {
+      return append( whole ).append( ".0" );
+    }
+    return append( Double.toString( value ) );
+  }
+
+  /* A date given in seconds, as the web services return them. */
+  RowWriter appendDate( long seconds )
+  {
+    int slot = (int) (seconds ^ (seconds >>> 32)) & (DATE_CACHE_SIZE - 1);
+    byte[] date = _dates[ slot ];
+    if ( (null == date) || (_dateKeys[ slot ] != seconds) ) {
+      // For more info on the web services' dates, see:
+      //   blackboard.platform.ws.WebserviceHelper.safeTime( Calendar c )
+      date = _dateFormat.format( new Date( (seconds * 1000) ) ).getBytes( _charset );
+      _dates[ slot ] = date;
+      _dateKeys[ slot ] = seconds;
+    }
+    return append( date );
+  }
+
+  RowWriter appendDelimiter() {
+    return append( _delimiter );
+  }
+
+  RowWriter endRow() {
+    return append( _lineSeparator );
+  }
+
+  int length() {
+    return _length;
+  }
+
+  /* Empties the buffer, keeping it for the next rows. */
+  void reset() {
+    _length = 0;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf( _buffer, _length );
+  }
+
+  void writeTo( OutputStream out ) throws IOException {
+    out.write( _buffer, 0, _length );
+  }
+
+  private void ensureCapacity( int extra )
+  {
+    if ( _length + extra > _buffer.length ) {
+      _buffer = Arrays.copyOf( _buffer, Math.max( _buffer.length * 2, _length + extra ) );
+    }
+  }
+
+  private static boolean isNegativeZero( double value ) {
+    return (0.0d == value) && (Double.doubleToRawLongBits( value ) != 0L);
+  }
+}
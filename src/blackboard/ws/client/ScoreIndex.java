@@ -0,0 +1,33 @@
+package blackboard.ws.client;
+
+/**
+ * Index of the scores of a single course by columnId and course membership
+ * id, so that the score for a row can be found without scanning every score
+ * in the course.  The ids are keyed through the course's {@link IdDictionary}
+ * and the pair looked up in a primitive map of score positions, so the
+ * index costs two arrays rather than a map entry per score.
+ */
+class ScoreIndex
+{
+  private final LongIntMap _scoresByColumnAndMember;
+
+  ScoreIndex( CourseSnapshot.Scores scores, IdDictionary ids )
+  {
+    _scoresByColumnAndMember = new LongIntMap( scores.size() );
+    for ( int ii = 0; ii < scores.size(); ii++ ) {
+      String columnId = scores._columnId.get( ii );
+      String memberId = scores._memberId.get( ii );
+      if ( (null == columnId) || (null == memberId) ) {
+        continue; // Null entries never matched a row.
+      }
+      // If a column/membership has more than one score, keep the first one,
+      // which is the one the old linear scan of the scores would have found.
+      _scoresByColumnAndMember.putIfAbsent( LongIntMap.key( ids.key( columnId ), ids.key( memberId ) ), ii );
+    }
+  }
+
+  /* The position of the score for the given column and membership keys, or -1 if not graded. */
+  int get( int columnKey, int memberKey ) {
+    return _scoresByColumnAndMember.get( LongIntMap.key( columnKey, memberKey ), -1 );
+  }
+}
@@ -0,0 +1,200 @@
+package blackboard.ws.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A directory with a segment file per course, so each course is written to
+ * disk as soon as it is formatted, in whatever order the courses finish,
+ * instead of being held back (in memory or a spill file) until the courses
+ * before it in the report are written.  Once every course is done, the
+ * report is assembled from the segments in courseId order with transferTo,
+ * which copies file to file without the bytes passing through the heap.
+ *
+ * A segment is written as <coursePkId>.tmp and moved to <coursePkId>.seg
+ * once its course is complete.  A course that had errors is moved to
+ * <coursePkId>.failed instead: it is part of this run's report, as its rows
+ * always were, but not kept for the next run.  If a run dies before the
+ * report is assembled, the next run with the same directory reuses the
+ * complete segments and only fetches the other courses.  The segments are
+ * deleted once the report is assembled, so use the directory for one run
+ * (and its restarts) at a time.
+ *
+ * The settings the rows depend on (delimiter, format, fields) are kept in
+ * segments.settings, and segments written with other settings are deleted
+ * rather than reused, so a restart with a changed configuration doesn't
+ * assemble a report of mixed formats.
+ *
+ * Many segments are open at once, one per course in flight, so each gets a
+ * small heap buffer rather than the report's large direct one.
+ */
+class SegmentDirectory
+{
+  private static final org.apache.commons.logging.Log _LOG = //
+    org.apache.commons.logging.LogFactory.getLog( SegmentDirectory.class );
+
+  private static final String COMPLETE = ".seg";
+  private static final String FAILED = ".failed";
+  private static final String WRITING = ".tmp";
+  private static final String SETTINGS = "segments.settings";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File _dir;
+  private final String _sync;
+
+  // Totals for the end of run summary
+  private int _written = 0;
+  private int _reused = 0;
+  private long _assembledBytes = 0;
+  private long _assembleMillis = 0;
+
+  SegmentDirectory( File dir, String sync )
+  {
+    _dir = dir;
+    _sync = sync;
+  }
+
+  /*
+   * Creates the directory, and drops whatever a previous run left incomplete
+   * or wrote with settings other than these, or all of it if the courses
+   * can't be reused.
+   */
+  void start( String settings, boolean reuse ) throws IOException
+  {
+    _dir.mkdirs();
+    if ( !_dir.isDirectory() ) {
+      throw new IOException( "Failed to create segment directory [" + _dir + "]." );
+    }
+    byte[] expected = settings.getBytes( "UTF-8" );
+    File manifest = new File( _dir, SETTINGS );
+    boolean sameSettings = manifest.exists() && Arrays.equals( expected, Files.readAllBytes( manifest.toPath() ) );
+    int complete = 0;
+    int dropped = 0;
+    for ( File file : _dir.listFiles() ) {
+      String name = file.getName();
+      if ( name.endsWith( WRITING ) || name.endsWith( FAILED ) ) {
+        file.delete();
+      }
+      else if ( name.endsWith( COMPLETE ) ) {
+        if ( reuse && sameSettings ) {
+          complete++;
+        }
+        else if ( file.delete() ) {
+          dropped++;
+        }
+      }
+    }
+    if ( complete > 0 ) {
+      _LOG.info( "Found [" + complete + "] complete course segments from a previous run in [" + _dir + "]." );
+    }
+    if ( dropped > 0 ) {
+      _LOG.warn( "Deleted [" + dropped + "] course segments from a previous run in [" + _dir + "], "
+                 + (reuse ? "they were written with other settings." : "their courses are fetched again for the columnar file.") );
+    }
+    if ( !sameSettings ) {
+      File tmpFile = new File( _dir, SETTINGS + WRITING );
+      OutputStream out = new FileOutputStream( tmpFile );
+      try {
+        out.write( expected );
+      }
+      finally {
+        out.close();
+      }
+      ChannelOutputStream.moveIntoPlace( tmpFile, manifest );
+    }
+  }
+
+  /* True if a previous run completed the course, counting it as reused. */
+  boolean reuse( String coursePkId )
+  {
+    if ( !file( coursePkId, COMPLETE ).exists() ) {
+      return false;
+    }
+    _reused++;
+    return true;
+  }
+
+  /* Starts the segment of a course. */
+  ChannelOutputStream open( String coursePkId ) throws IOException {
+    return new ChannelOutputStream( file( coursePkId, WRITING ), false, ByteBuffer.allocate( BUFFER_SIZE ), _sync );
+  }
+
+  /* Ends the segment of a course, keeping it for a restart unless the course failed. */
+  void close( String coursePkId, ChannelOutputStream segment, boolean failed ) throws IOException
+  {
+    segment.close();
+    ChannelOutputStream.moveIntoPlace( file( coursePkId, WRITING ), file( coursePkId, failed ? FAILED : COMPLETE ) );
+    _written++;
+  }
+
+  /* Drops the segment of a course that couldn't be written. */
+  void discard( String coursePkId, ChannelOutputStream segment )
+  {
+    try {
+      segment.close();
+    }
+    catch( IOException e ) {
+      // Deleted either way.
+    }
+    file( coursePkId, WRITING ).delete();
+  }
+
+  /* Copies the segments of the courses, in the order given, to the report. */
+  void assemble( List<String> coursePkIds, WritableByteChannel report ) throws IOException
+  {
+    long start = System.currentTimeMillis();
+    for ( String coursePkId : coursePkIds ) {
+      File segment = file( coursePkId, COMPLETE );
+      if ( !segment.exists() ) {
+        segment = file( coursePkId, FAILED );
+      }
+      if ( !segment.exists() ) {
+        continue; // Never written, already reported.
+      }
+      FileChannel source = new FileInputStream( segment ).getChannel();
+      try {
+        long size = source.size();
+        for ( long copied = 0; copied < size; ) {
+          long count = source.transferTo( copied, size - copied, report );
+          if ( count <= 0 ) {
+            throw new IOException( "Segment [" + segment + "] ended at " + copied + " of its " + size + " bytes." );
+          }
+          copied += count;
+        }
+        _assembledBytes += size;
+      }
+      finally {
+        source.close();
+      }
+    }
+    _assembleMillis += System.currentTimeMillis() - start;
+  }
+
+  /* Deletes the segments once the report is assembled. */
+  void clear( List<String> coursePkIds )
+  {
+    for ( String coursePkId : coursePkIds ) {
+      file( coursePkId, COMPLETE ).delete();
+      file( coursePkId, FAILED ).delete();
+    }
+  }
+
+  String summary()
+  {
+    return "Segments: " + _written + " written, " + _reused + " reused from a previous run, "
+      + (_assembledBytes / 1024) + " KB assembled in " + _assembleMillis + " ms";
+  }
+
+  private File file( String coursePkId, String suffix ) {
+    return new File( _dir, coursePkId + suffix );
+  }
+}
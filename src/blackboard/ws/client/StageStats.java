@@ -0,0 +1,41 @@
+package blackboard.ws.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput counters for one stage of the extract.  A stage records the
+ * work it has done and the time it spent doing it (not the time it spent
+ * waiting on the stages around it), so the stage holding up the run is the
+ * one closest to 100% busy.  The busy time of a stage with several threads
+ * is summed over its threads, so it can go over 100%.
+ */
+class StageStats
+{
+  private final String _name;
+  private final String _unit;
+  private final AtomicLong _units = new AtomicLong();
+  private final AtomicLong _busyNanos = new AtomicLong();
+
+  StageStats( String name, String unit )
+  {
+    _name = name;
+    _unit = unit;
+  }
+
+  /* Records work done by one thread of the stage since startNanos (from System.nanoTime()). */
+  void record( long units, long startNanos )
+  {
+    _units.addAndGet( units );
+    _busyNanos.addAndGet( System.nanoTime() - startNanos );
+  }
+
+  /* Summary of the stage for a run that took the given wall clock time. */
+  String summary( long elapsedMillis )
+  {
+    long units = _units.get();
+    long busyMillis = _busyNanos.get() / 1000000L;
+    long perSecond = (0 == busyMillis) ? 0 : (units * 1000L / busyMillis);
+    long busyPercent = (0 == elapsedMillis) ? 0 : (busyMillis * 100L / elapsedMillis);
+    return "Stage [" + _name + "]: " + units + " " + _unit + " in " + busyMillis + " ms busy (" + perSecond + " " + _unit + "/s), " + busyPercent + "% of run time";
+  }
+}
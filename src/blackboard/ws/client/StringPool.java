@@ -0,0 +1,68 @@
+package blackboard.ws.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one copy of the strings that repeat across rows, such as grades,
+ * column aggregation models and calculation types, and course service
+ * levels.  Each parsed VO comes with its own copies; passing them through the
+ * pool as they are copied out of the VOs leaves those copies as garbage, so
+ * the heap holds each distinct value once however many rows repeat it.
+ *
+ * The pool is shared by the whole run and capped, once full it only hands
+ * out the strings it already has.  Hits and the heap they save are counted
+ * for the end of run summary.
+ */
+class StringPool
+{
+  // Heap taken by a String beyond its characters: the String object and the
+  // header of its array.  The characters are counted as one byte each, as
+  // on a JDK with compact strings.
+  private static final int STRING_OVERHEAD = 24 + 16;
+
+  private final int _maxSize;
+  private final ConcurrentHashMap<String, String> _strings = new ConcurrentHashMap<String, String>();
+
+  // Totals for the end of run summary
+  private final AtomicLong _lookups = new AtomicLong();
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _savedBytes = new AtomicLong();
+
+  StringPool( int maxSize )
+  {
+    _maxSize = maxSize;
+  }
+
+  /* The pooled copy of the string, adding it to the pool if there's room. */
+  String share( String value )
+  {
+    if ( null == value ) {
+      return null;
+    }
+    _lookups.incrementAndGet();
+    String pooled = _strings.get( value );
+    if ( null == pooled ) {
+      if ( _strings.size() >= _maxSize ) {
+        return value;
+      }
+      pooled = _strings.putIfAbsent( value, value );
+      if ( null == pooled ) {
+        return value;
+      }
+    }
+    if ( pooled != value ) {
+      _hits.incrementAndGet();
+      _savedBytes.addAndGet( (STRING_OVERHEAD + value.length() + 7) & ~7 );
+    }
+    return pooled;
+  }
+
+  String summary()
+  {
+    long lookups = _lookups.get();
+    long hitPercent = (0 == lookups) ? 0 : (_hits.get() * 100L / lookups);
+    return "String pool: " + _strings.size() + " distinct strings (at most " + _maxSize + "), " + _hits.get() + " of " + lookups
+      + " lookups (" + hitPercent + "%) shared an existing copy, about " + (_savedBytes.get() / 1024L) + " KB of heap saved";
+  }
+}
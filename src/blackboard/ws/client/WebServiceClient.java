@@ -4,9 +4,16 @@ package blackboard.ws.client;
 import java.io.*;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import javax.security.auth.callback.*;
 
+import org.apache.axis2.AxisFault;
 import org.apache.axis2.client.Options;
 import org.apache.axis2.client.ServiceClient;
 import org.apache.axis2.context.ConfigurationContext;
@@ -73,6 +80,8 @@ public class WebServiceClient {
     private CourseWSStub _courseWS;
     private CourseMembershipWSStub _courseMembershipWS;
     private GradebookWSStub _gradebookWS;
+    private ConfigurationContext _cfgCtx;
+    private String _wsBaseURL;
     private UserWSStub _userWS;
     private UtilWSStub _utilWS;
     private long _contextServerVersion;
@@ -81,6 +90,27 @@ public class WebServiceClient {
 
     // state variables
     private String _sessionId = null;
+    private CallMonitor _callMonitor = null;
+
+    // Gradebook stubs not in use.  An Axis2 stub isn't thread safe, and the
+    // gradebook is the one service a course calls several times at once (its
+    // columns and scores together, a column's scores in slices), so each of
+    // those calls borrows a stub of its own.  The stubs all send this
+    // client's session.
+    private final Queue<GradebookWSStub> _idleGradebookWS = new ConcurrentLinkedQueue<GradebookWSStub>();
+
+    /**
+     * Notified around every data load made by the client, e.g. to measure
+     * or limit the calls made to the server.  Operations are named as in
+     * the tool methods, e.g. "Gradebook.WS:getGrades".
+     */
+    public interface CallMonitor {
+      /* Called before the call is sent, may block to hold the call back. */
+      void beforeCall( String operation ) throws RemoteException;
+
+      /* Called once the call has returned (with the number of records given) or failed. */
+      void afterCall( String operation, int results, long latencyNanos, boolean failed );
+    }
 
     public WebServiceClient( Properties appConfig ) {
       this(
@@ -151,6 +181,10 @@ public class WebServiceClient {
         return _toolRegistrationPassword;
     }
 
+    public void setCallMonitor( CallMonitor callMonitor ) {
+        _callMonitor = callMonitor;
+    }
+
     public boolean useAutomaticLogin() {
         return m_guid != null;
     }
@@ -163,6 +197,8 @@ public class WebServiceClient {
 
         ConfigurationContext cfgCtx = ConfigurationContextFactory
           .createConfigurationContextFromFileSystem(_pathToAxisLib, _pathToAxisConf);
+        _cfgCtx = cfgCtx;
+        _wsBaseURL = wsBaseURL;
 
         _contextWS = new ContextWSStub(cfgCtx, wsBaseURL + "Context.WS");
         {
@@ -258,6 +294,8 @@ public class WebServiceClient {
             initGradebook.setIgnore(true);
             _gradebookWS.initializeGradebookWS(initGradebook).get_return();
         }
+        _idleGradebookWS.clear();
+        _idleGradebookWS.add(_gradebookWS);
 
         // register the tool
         _LOG.info("Registering Tool...");
@@ -340,7 +378,7 @@ public class WebServiceClient {
       CourseWSStub.CourseFilter filter = new CourseWSStub.CourseFilter();
       filter.setFilterType( 0 ); // 0 = All Courses
       getCourseParam.setFilter( filter );
-      CourseVO[] results = _courseWS.getCourse( getCourseParam ).get_return();
+      CourseVO[] results = callGetCourse( getCourseParam );
       if( null == results ) {
         results = new CourseVO[0];
       }
@@ -362,7 +400,7 @@ public class WebServiceClient {
       filter.setSearchKey( searchKey );
       filter.setSearchValue( searchValue );
       getCourseParam.setFilter( filter );
-      CourseVO[] results = _courseWS.getCourse( getCourseParam ).get_return();
+      CourseVO[] results = callGetCourse( getCourseParam );
       if( null == results ) {
         results = new CourseVO[0];
       }
@@ -380,7 +418,7 @@ public class WebServiceClient {
       filter.setCourseIds( new String[] { courseId } );
       getCourseParam.setFilter( filter );
 
-      CourseVO[] courses = _courseWS.getCourse( getCourseParam ).get_return();
+      CourseVO[] courses = callGetCourse( getCourseParam );
       if ( null != courses && courses.length > 1 ) {
         String errMsg = "getCourseByCourseId returned " + courses.length + " results and should only return 1 or 0.  Matches: ";
         for ( int ii = 0; ii < courses.length; ii++ ) {
@@ -407,7 +445,7 @@ public class WebServiceClient {
       filter.setIds( new String[] { id } );
       getCourseParam.setFilter( filter );
 
-      CourseVO[] courses = _courseWS.getCourse( getCourseParam ).get_return();
+      CourseVO[] courses = callGetCourse( getCourseParam );
       if ( null != courses && courses.length > 1 ) {
         String errMsg = "getCourseByCourseId returned " + courses.length + " results and should only return 1 or 0.  Matches: ";
         for ( int ii = 0; ii < courses.length; ii++ ) {
@@ -457,17 +495,22 @@ public class WebServiceClient {
 
     /* Load users by coursePkId, i.e. _X_1.  If none found, empty array returned. */
     public UserVO[] getUsersByCoursePkId( String coursePkId ) throws RemoteException
+    {
+      UserVO[] users = callGetUser( newUsersByCoursePkIdParam( coursePkId ) );
+      if ( null == users ) {
+        users = new UserVO[ 0 ];
+      }
+      return users;
+    }
+
+    private GetUser newUsersByCoursePkIdParam( String coursePkId )
     {
       GetUser userParam = new GetUser();
       UserFilter userFilter = new UserFilter();
       userFilter.setFilterType( 4 ); // 4 = Load by course Id, 2 = byId
       userFilter.setCourseId( new String[] { coursePkId } );
       userParam.setFilter( userFilter );
-      UserVO[] users = _userWS.getUser( userParam ).get_return();
-      if ( null == users ) {
-        users = new UserVO[ 0 ];
-      }
-      return users;
+      return userParam;
     }
 
     /*
@@ -492,6 +535,15 @@ public class WebServiceClient {
     
     /* Load users by coursePkId, i.e. _X_1.  If none found, empty array returned. */
     public CourseMembershipVO[] getMembershipsByCoursePkIdAndRoleIds( String coursePkId, String[] roleIds ) throws RemoteException
+    {
+      CourseMembershipVO[] results = callGetCourseMembership( newMembershipsByCoursePkIdAndRoleIdsParam( coursePkId, roleIds ) );
+      if ( null == results ) {
+        results = new CourseMembershipVO[ 0 ];
+      }
+      return results;
+    }
+
+    private GetCourseMembership newMembershipsByCoursePkIdAndRoleIdsParam( String coursePkId, String[] roleIds )
     {
       GetCourseMembership param = new GetCourseMembership();
       MembershipFilter filter = new MembershipFilter();
@@ -500,11 +552,7 @@ public class WebServiceClient {
       filter.setRoleIds( roleIds );
       param.setF( filter );
       param.setCourseId( coursePkId );
-      CourseMembershipVO[] results = _courseMembershipWS.getCourseMembership( param ).get_return();
-      if ( null == results ) {
-        results = new CourseMembershipVO[ 0 ];
-      }
-      return results;
+      return param;
     }
 
     /*
@@ -548,6 +596,15 @@ public class WebServiceClient {
      */
 
     public ScoreVO[] getScoresByCoursePkId( String coursePkId ) throws RemoteException
+    {
+      ScoreVO[] results = callGetGrades( newScoresByCoursePkIdParam( coursePkId ) );
+      if( null == results ) {
+        results = new ScoreVO[0];
+      }
+      return results;
+    }
+
+    private GetGrades newScoresByCoursePkIdParam( String coursePkId )
     {
       GetGrades param = new GetGrades();
       param.setCourseId( coursePkId );
@@ -555,13 +612,52 @@ public class WebServiceClient {
 //      filter.setId( coursePkId );
       filter.setFilterType( 1 ); // 1 = by courseId, 5 = by courseId, columnId, and membershipId
       param.setFilter( filter );
-      ScoreVO[] results = _gradebookWS.getGrades( param ).get_return();
+      return param;
+    }
+
+    /* Load the scores of a single gradebook column.  If none found, empty array returned. */
+    public ScoreVO[] getScoresByColumnId( String coursePkId, String columnId ) throws RemoteException
+    {
+      ScoreVO[] results = callGetGrades( newScoresByColumnIdParam( coursePkId, columnId ) );
+      if( null == results ) {
+        results = new ScoreVO[0];
+      }
+      return results;
+    }
+
+    private GetGrades newScoresByColumnIdParam( String coursePkId, String columnId )
+    {
+      GetGrades param = new GetGrades();
+      param.setCourseId( coursePkId );
+      ScoreFilter filter = new ScoreFilter();
+      filter.setColumnId( columnId );
+      filter.setFilterType( 3 ); // 3 = by columnId
+      param.setFilter( filter );
+      return param;
+    }
+
+    /* Load the scores of a gradebook column for the given course memberships.  If none found, empty array returned. */
+    public ScoreVO[] getScoresByColumnIdAndMemberIds( String coursePkId, String columnId, String[] memberIds ) throws RemoteException
+    {
+      ScoreVO[] results = callGetGrades( newScoresByColumnIdAndMemberIdsParam( coursePkId, columnId, memberIds ) );
       if( null == results ) {
         results = new ScoreVO[0];
       }
       return results;
     }
 
+    private GetGrades newScoresByColumnIdAndMemberIdsParam( String coursePkId, String columnId, String[] memberIds )
+    {
+      GetGrades param = new GetGrades();
+      param.setCourseId( coursePkId );
+      ScoreFilter filter = new ScoreFilter();
+      filter.setColumnId( columnId );
+      filter.setMemberIds( memberIds );
+      filter.setFilterType( 10 ); // 10 = by memberIds and columnId
+      param.setFilter( filter );
+      return param;
+    }
+
     public ColumnVO getExternalGradeColumnByCoursePkId( String coursePkId ) throws RemoteException
     {
       ColumnVO[] results = getColumnsByCoursePkId( coursePkId, 4 );
@@ -584,17 +680,293 @@ public class WebServiceClient {
     }
 
     private ColumnVO[] getColumnsByCoursePkId( String coursePkId, int filterType ) throws RemoteException
+    {
+      ColumnVO[] columns = callGetGradebookColumns( newColumnsByCoursePkIdParam( coursePkId, filterType ) );
+      if ( null == columns ) {
+        columns = new ColumnVO[ 0 ];
+      }
+      return columns;
+    }
+
+    private GetGradebookColumns newColumnsByCoursePkIdParam( String coursePkId, int filterType )
     {
       GetGradebookColumns param = new GetGradebookColumns();
       param.setCourseId( coursePkId );
       ColumnFilter filter = new ColumnFilter();
       filter.setFilterType( filterType ); // 1 = all columns by course, 4 = column by external_grade, 
       param.setFilter( filter );
-      ColumnVO[] columns = _gradebookWS.getGradebookColumns( param ).get_return();
-      if ( null == columns ) {
-        columns = new ColumnVO[ 0 ];
+      return param;
+    }
+
+    /*
+     * Load Methods On An Executor
+     *
+     * The same loads as above, run on a thread of the given executor so the
+     * caller can do other work (or start other loads) meanwhile.  They are
+     * not asynchronous I/O: the stubs are generated with syncOnly="true",
+     * so each load holds its executor thread for the whole round trip, and
+     * the loads in flight are bounded by the executor's threads (or, on
+     * virtual threads, by app.maxCallsInFlight).  The future completes with
+     * an empty array if none found, or exceptionally with a RemoteException.
+     * A load cancelled before it gets a thread is never sent; one already on
+     * the wire is left to finish, as Axis2 calls can't be interrupted.
+     */
+
+    public CompletableFuture<UserVO[]> getUsersByCoursePkIdOn( final String coursePkId, Executor executor )
+    {
+      return startLoad( new ExecutorLoad<UserVO[]>() {
+        UserVO[] load() throws RemoteException {
+          return getUsersByCoursePkId( coursePkId );
+        }
+      }, executor );
+    }
+
+    public CompletableFuture<CourseMembershipVO[]> getMembershipsByCoursePkIdAndRoleIdsOn( final String coursePkId, final String[] roleIds,
+                                                                                             Executor executor )
+    {
+      return startLoad( new ExecutorLoad<CourseMembershipVO[]>() {
+        CourseMembershipVO[] load() throws RemoteException {
+          return getMembershipsByCoursePkIdAndRoleIds( coursePkId, roleIds );
+        }
+      }, executor );
+    }
+
+    public CompletableFuture<ScoreVO[]> getScoresByCoursePkIdOn( final String coursePkId, Executor executor )
+    {
+      return startLoad( new ExecutorLoad<ScoreVO[]>() {
+        ScoreVO[] load() throws RemoteException {
+          return getScoresByCoursePkId( coursePkId );
+        }
+      }, executor );
+    }
+
+    public CompletableFuture<ScoreVO[]> getScoresByColumnIdOn( final String coursePkId, final String columnId, Executor executor )
+    {
+      return startLoad( new ExecutorLoad<ScoreVO[]>() {
+        ScoreVO[] load() throws RemoteException {
+          return getScoresByColumnId( coursePkId, columnId );
+        }
+      }, executor );
+    }
+
+    public CompletableFuture<ScoreVO[]> getScoresByColumnIdAndMemberIdsOn( final String coursePkId, final String columnId, final String[] memberIds,
+                                                                             Executor executor )
+    {
+      return startLoad( new ExecutorLoad<ScoreVO[]>() {
+        ScoreVO[] load() throws RemoteException {
+          return getScoresByColumnIdAndMemberIds( coursePkId, columnId, memberIds );
+        }
+      }, executor );
+    }
+
+    /*
+     * Load the scores of a gradebook column in slices of at most chunkSize
+     * course memberships, with all the slices handed to the executor at
+     * once.  No single response holds more than chunkSize scores, however
+     * large the course.  The scores come back in the order of the
+     * memberships given.
+     */
+    public CompletableFuture<ScoreVO[]> getScoresByColumnIdInMemberChunksOn( String coursePkId, String columnId, String[] memberIds, int chunkSize,
+                                                                               Executor executor )
+    {
+      chunkSize = Math.max( 1, chunkSize );
+      final List<CompletableFuture<ScoreVO[]>> slices = new ArrayList<CompletableFuture<ScoreVO[]>>();
+      for ( int from = 0; from < memberIds.length; from += chunkSize ) {
+        String[] slice = Arrays.copyOfRange( memberIds, from, Math.min( memberIds.length, from + chunkSize ) );
+        slices.add( getScoresByColumnIdAndMemberIdsOn( coursePkId, columnId, slice, executor ) );
+      }
+      final CompletableFuture<ScoreVO[]> scores = CompletableFuture.allOf( slices.toArray( new CompletableFuture<?>[ slices.size() ] ) ).thenApply( new Function<Void, ScoreVO[]>() {
+        public ScoreVO[] apply( Void done ) {
+          List<ScoreVO> scores = new ArrayList<ScoreVO>();
+          for ( CompletableFuture<ScoreVO[]> slice : slices ) {
+            scores.addAll( Arrays.asList( slice.join() ) );
+          }
+          return scores.toArray( new ScoreVO[ scores.size() ] );
+        }
+      } );
+      // Cancelling the column cancels the slices still waiting for a thread.
+      scores.whenComplete( new BiConsumer<ScoreVO[], Throwable>() {
+        public void accept( ScoreVO[] result, Throwable failure ) {
+          if ( scores.isCancelled() ) {
+            for ( CompletableFuture<ScoreVO[]> slice : slices ) {
+              slice.cancel( false );
+            }
+          }
+        }
+      } );
+      return scores;
+    }
+
+    public CompletableFuture<ColumnVO[]> getColumnsByCoursePkIdOn( final String coursePkId, Executor executor )
+    {
+      return startLoad( new ExecutorLoad<ColumnVO[]>() {
+        ColumnVO[] load() throws RemoteException {
+          return getColumnsByCoursePkId( coursePkId );
+        }
+      }, executor );
+    }
+
+    private <T> CompletableFuture<T> startLoad( ExecutorLoad<T> load, Executor executor )
+    {
+      try {
+        executor.execute( load );
+      }
+      catch( RejectedExecutionException e ) {
+        load.completeExceptionally( new RemoteException( "Failed to start a web service call: " + e.getMessage(), e ) );
+      }
+      return load;
+    }
+
+    /*
+     * Monitored Calls
+     *
+     * Every data load goes through one of these, so that the call monitor
+     * (if any) sees each call to the server.
+     */
+
+    private CourseVO[] callGetCourse( GetCourse param ) throws RemoteException
+    {
+      final String operation = "Course.WS:getCourse";
+      long start = beginCall( operation );
+      CourseVO[] results = null;
+      boolean failed = true;
+      try {
+        results = _courseWS.getCourse( param ).get_return();
+        failed = false;
+        return results;
+      }
+      finally {
+        endCall( operation, start, results, failed );
+      }
+    }
+
+    private UserVO[] callGetUser( GetUser param ) throws RemoteException
+    {
+      final String operation = "User.WS:getUser";
+      long start = beginCall( operation );
+      UserVO[] results = null;
+      boolean failed = true;
+      try {
+        results = _userWS.getUser( param ).get_return();
+        failed = false;
+        return results;
+      }
+      finally {
+        endCall( operation, start, results, failed );
+      }
+    }
+
+    private CourseMembershipVO[] callGetCourseMembership( GetCourseMembership param ) throws RemoteException
+    {
+      final String operation = "CourseMembership.WS:getCourseMembership";
+      long start = beginCall( operation );
+      CourseMembershipVO[] results = null;
+      boolean failed = true;
+      try {
+        results = _courseMembershipWS.getCourseMembership( param ).get_return();
+        failed = false;
+        return results;
+      }
+      finally {
+        endCall( operation, start, results, failed );
+      }
+    }
+
+    private ScoreVO[] callGetGrades( GetGrades param ) throws RemoteException
+    {
+      final String operation = "Gradebook.WS:getGrades";
+      long start = beginCall( operation );
+      ScoreVO[] results = null;
+      boolean failed = true;
+      try {
+        GradebookWSStub gradebookWS = borrowGradebookWS();
+        try {
+          results = gradebookWS.getGrades( param ).get_return();
+        }
+        finally {
+          _idleGradebookWS.add( gradebookWS );
+        }
+        failed = false;
+        return results;
+      }
+      finally {
+        endCall( operation, start, results, failed );
+      }
+    }
+
+    private ColumnVO[] callGetGradebookColumns( GetGradebookColumns param ) throws RemoteException
+    {
+      final String operation = "Gradebook.WS:getGradebookColumns";
+      long start = beginCall( operation );
+      ColumnVO[] results = null;
+      boolean failed = true;
+      try {
+        GradebookWSStub gradebookWS = borrowGradebookWS();
+        try {
+          results = gradebookWS.getGradebookColumns( param ).get_return();
+        }
+        finally {
+          _idleGradebookWS.add( gradebookWS );
+        }
+        failed = false;
+        return results;
+      }
+      finally {
+        endCall( operation, start, results, failed );
+      }
+    }
+
+    /* A gradebook stub no other call is using, with the same options (and session) as the first. */
+    private GradebookWSStub borrowGradebookWS() throws AxisFault
+    {
+      GradebookWSStub stub = _idleGradebookWS.poll();
+      if ( null != stub ) {
+        return stub;
+      }
+      stub = new GradebookWSStub( _cfgCtx, _wsBaseURL + "Gradebook.WS" );
+      setWebserviceClientOptions( stub._getServiceClient().getOptions() );
+      return stub;
+    }
+
+    private long beginCall( String operation ) throws RemoteException
+    {
+      if ( null != _callMonitor ) {
+        _callMonitor.beforeCall( operation );
+      }
+      return System.nanoTime();
+    }
+
+    private void endCall( String operation, long start, Object[] results, boolean failed )
+    {
+      if ( null != _callMonitor ) {
+        _callMonitor.afterCall( operation, (null == results) ? 0 : results.length, System.nanoTime() - start, failed );
+      }
+    }
+
+    /* A blocking load run on an executor, and the future of its results. */
+    private static abstract class ExecutorLoad<T> extends CompletableFuture<T> implements Runnable
+    {
+      abstract T load() throws RemoteException;
+
+      public void run()
+      {
+        if ( isDone() ) {
+          return; // Cancelled before it got a thread
+        }
+        try {
+          complete( load() );
+        }
+        catch( RemoteException e ) {
+          completeExceptionally( e );
+        }
+        catch( RuntimeException e ) {
+          completeExceptionally( e );
+        }
+        catch( Error e ) {
+          completeExceptionally( e );
+          throw e;
+        }
       }
-      return columns;
     }
 
     /* internal method to set appropriate configuration on ws client */
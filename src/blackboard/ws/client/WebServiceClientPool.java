@@ -0,0 +1,278 @@
+package blackboard.ws.client;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pool of initialized and logged-in web service clients that are leased to
+ * the course workers.  Every client in the pool reports to the same call
+ * monitor, if one is given.
+ *
+ * Sessions are renewed in the background: once a session has been logged in
+ * for renewAfterMillis, or has served renewAfterCourses courses, a new client
+ * is initialized and logged in on a pool thread and takes the old one's place,
+ * and the old one is logged out when it is next returned.  A client returned
+ * as unhealthy is retired and replaced the same way.  Workers only wait for a
+ * client while the pool is first filling or when every replacement is
+ * failing.  A replacement that fails to connect is retried after
+ * retryDelayMillis (at least a second), doubling with every failure up to a
+ * minute.
+ */
+class WebServiceClientPool
+{
+  private static final org.apache.commons.logging.Log _LOG = //
+    org.apache.commons.logging.LogFactory.getLog( WebServiceClientPool.class );
+
+  // How often the pool looks for sessions that are due to be renewed.
+  private static final long MAINTENANCE_INTERVAL_MILLIS = 10000L;
+
+  private static final long MIN_RETRY_DELAY_MILLIS = 1000L;
+  private static final long MAX_RETRY_DELAY_MILLIS = 60000L;
+
+  // How long close() waits for a connect or logout already running.
+  private static final long CLOSE_TIMEOUT_MILLIS = 30000L;
+
+  private final Properties _appConfig;
+  private final int _size;
+  private final int _renewAfterCourses;
+  private final long _renewAfterMillis;
+  private final long _retryDelayMillis;
+  private final long _leaseTimeoutMillis;
+  private final WebServiceClient.CallMonitor _callMonitor;
+  private final List<String> _errors;
+
+  private final BlockingQueue<Session> _idle = new LinkedBlockingQueue<Session>();
+  private final BlockingQueue<Session> _loggingOut = new LinkedBlockingQueue<Session>();
+  private final Map<WebServiceClient, Session> _sessions = new IdentityHashMap<WebServiceClient, Session>();
+  private final ScheduledExecutorService _maintenance;
+  private volatile boolean _closed = false;
+
+  WebServiceClientPool( Properties appConfig, int size, int renewAfterCourses, long renewAfterMillis,
+                        long retryDelayMillis, long leaseTimeoutMillis, WebServiceClient.CallMonitor callMonitor,
+                        List<String> errors )
+  {
+    _appConfig = appConfig;
+    _size = size;
+    _renewAfterCourses = renewAfterCourses;
+    _renewAfterMillis = renewAfterMillis;
+    _retryDelayMillis = Math.min( Math.max( retryDelayMillis, MIN_RETRY_DELAY_MILLIS ), MAX_RETRY_DELAY_MILLIS );
+    _leaseTimeoutMillis = leaseTimeoutMillis;
+    _callMonitor = callMonitor;
+    _errors = errors;
+    _maintenance = new ScheduledThreadPoolExecutor( Math.min( size, 4 ) );
+  }
+
+  /* Fills the pool, starting with an already logged-in client, and starts the background renewal. */
+  void start( WebServiceClient firstClient )
+  {
+    add( firstClient );
+    for ( int ii = 1; ii < _size; ii++ ) {
+      scheduleNewSession( 0, 0 );
+    }
+    _maintenance.scheduleWithFixedDelay( new Runnable() {
+      public void run() {
+        renewDueSessions();
+      }
+    }, MAINTENANCE_INTERVAL_MILLIS, MAINTENANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS );
+  }
+
+  /* Takes a client from the pool, waiting for one if none are idle. */
+  WebServiceClient lease() throws RemoteException, InterruptedException
+  {
+    while ( true ) {
+      Session session = _idle.poll( _leaseTimeoutMillis, TimeUnit.MILLISECONDS );
+      if ( null == session ) {
+        throw new RemoteException( "No web service client became available within [" + _leaseTimeoutMillis + "] milliseconds." );
+      }
+      if ( !session._retired.get() ) {
+        return session._client;
+      }
+      // Replaced while idle, the replacement is already in the pool.
+      logoutInBackground( session );
+    }
+  }
+
+  /* Returns a leased client for one course.  Unhealthy clients are replaced rather than reused. */
+  void release( WebServiceClient client, boolean healthy )
+  {
+    Session session;
+    synchronized( _sessions ) {
+      session = _sessions.get( client );
+    }
+    if ( null == session ) {
+      return;
+    }
+    session._courseCount++;
+
+    if ( !healthy && session.retire() ) {
+      _LOG.warn( "Retiring unhealthy web service client and connecting a replacement." );
+      scheduleNewSession( 0, 0 );
+    }
+
+    if ( session._retired.get() || _closed ) {
+      logoutInBackground( session );
+    }
+    else {
+      _idle.add( session );
+    }
+  }
+
+  /*
+   * Stops the background renewal and logs out every client, including the
+   * retired ones still waiting to be logged out in the background.
+   */
+  void close()
+  {
+    _closed = true;
+    _maintenance.shutdownNow();
+    try {
+      _maintenance.awaitTermination( CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+    }
+    catch( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+    List<Session> sessions;
+    synchronized( _sessions ) {
+      sessions = new ArrayList<Session>( _sessions.values() );
+      _sessions.clear();
+    }
+    _loggingOut.drainTo( sessions );
+    for ( Session session : sessions ) {
+      logout( session );
+    }
+  }
+
+  private void add( WebServiceClient client )
+  {
+    client.setCallMonitor( _callMonitor );
+    Session session = new Session( client );
+    synchronized( _sessions ) {
+      if ( !_closed ) {
+        _sessions.put( client, session );
+        _idle.add( session );
+        return;
+      }
+    }
+    logout( session ); // Connected while the pool was closing.
+  }
+
+  /* Starts a replacement session for every session that has been in use too long. */
+  private void renewDueSessions()
+  {
+    List<Session> sessions;
+    synchronized( _sessions ) {
+      sessions = new ArrayList<Session>( _sessions.values() );
+    }
+    long now = System.currentTimeMillis();
+    for ( Session session : sessions ) {
+      boolean expiring = (_renewAfterMillis > 0) && (now - session._loginMillis >= _renewAfterMillis);
+      boolean batchDone = (_renewAfterCourses > 0) && (session._courseCount >= _renewAfterCourses);
+      if ( (expiring || batchDone) && session.retire() ) {
+        _LOG.info( "Renewing web service client after [" + session._courseCount + "] courses and [" + ((now - session._loginMillis) / 1000) + "] seconds." );
+        scheduleNewSession( 0, 0 );
+      }
+    }
+  }
+
+  /*
+   * Initializes and logs in a new client on a pool thread, retrying until it
+   * succeeds.  Only the first failure of a replacement is recorded as an
+   * error, the retries are logged.
+   */
+  private void scheduleNewSession( long delayMillis, final int failures )
+  {
+    if ( _closed ) {
+      return;
+    }
+    _maintenance.schedule( new Runnable() {
+      public void run() {
+        if ( _closed ) {
+          return;
+        }
+        try {
+          WebServiceClient client = new WebServiceClient( _appConfig );
+          client.initialize();
+          client.login();
+          add( client );
+        }
+        catch( Exception e ) {
+          long retryMillis = Math.min( MAX_RETRY_DELAY_MILLIS, _retryDelayMillis << Math.min( failures, 20 ) );
+          String message = "Failed to connect a web service client (attempt [" + (failures + 1) + "]), retrying in [" + retryMillis + "] milliseconds: " + e.getMessage();
+          if ( 0 == failures ) {
+            _errors.add( message );
+          }
+          _LOG.error( message, e );
+          scheduleNewSession( retryMillis, failures + 1 );
+        }
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS );
+  }
+
+  private void logoutInBackground( final Session session )
+  {
+    synchronized( _sessions ) {
+      _sessions.remove( session._client );
+    }
+    if ( _closed ) {
+      logout( session );
+      return;
+    }
+    // Queued rather than handed to the task, so close() can still log out
+    // the sessions whose task it dropped.
+    _loggingOut.add( session );
+    Runnable logoutNext = new Runnable() {
+      public void run() {
+        Session next = _loggingOut.poll();
+        if ( null != next ) {
+          logout( next );
+        }
+      }
+    };
+    try {
+      _maintenance.execute( logoutNext );
+    }
+    catch( RejectedExecutionException e ) {
+      logoutNext.run(); // Closed since the check above.
+    }
+  }
+
+  private void logout( Session session )
+  {
+    try {
+      session._client.logout();
+    }
+    catch( Exception e ) {
+      _errors.add( e.getMessage() );
+      _LOG.error( e.getMessage(), e );
+    }
+  }
+
+  /* A pooled client and its usage. */
+  private static class Session
+  {
+    private final WebServiceClient _client;
+    private final long _loginMillis = System.currentTimeMillis();
+    private volatile int _courseCount = 0;
+    private final AtomicBoolean _retired = new AtomicBoolean( false );
+
+    private Session( WebServiceClient client ) {
+      _client = client;
+    }
+
+    /* Retires the session, returns false if it already was, so it only gets one replacement. */
+    private boolean retire() {
+      return _retired.compareAndSet( false, true );
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package blackboard.ws.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Writes a columnar file with a row group size that leaves the last group
+ * short, then reads it back by the layout documented on ColumnarWriter:
+ * header, every row group at the offset the footer gives for it, the stats,
+ * the footer offset and the trailing magic, and the values of every field.
+ * Exits non-zero if a check fails.
+ */
+class ColumnarWriterTest
+{
+  private static final int ROWS = 10;
+  private static final int ROW_GROUP_ROWS = 4;
+
+  private static final String[] NAMES = { "course", "gradeId", "available", "position", "dueDate", "score" };
+  private static final byte[] TYPES = { ColumnarWriter.STRING, ColumnarWriter.STRING, ColumnarWriter.BOOLEAN,
+                                        ColumnarWriter.INT, ColumnarWriter.LONG, ColumnarWriter.DOUBLE };
+
+  public static void main( String[] args ) throws Exception
+  {
+    File file = File.createTempFile( "ColumnarWriterTest", ".gcol" );
+    try {
+      write( file );
+      read( file );
+    }
+    finally {
+      file.delete();
+    }
+    System.out.println( "ColumnarWriterTest: all checks passed." );
+  }
+
+  /* The course repeats (a dictionary), the grade PK doesn't (plain), every third row has no score. */
+  private static String course( int row ) {
+    return "C000" + (row / 5);
+  }
+
+  private static String gradeId( int row ) {
+    return "_" + row + "_1";
+  }
+
+  private static boolean hasScore( int row ) {
+    return 0 != (row % 3);
+  }
+
+  private static void write( File file ) throws IOException
+  {
+    ColumnarWriter out = new ColumnarWriter( new FileOutputStream( file ), NAMES, TYPES, ROW_GROUP_ROWS );
+    for ( int rr = 0; rr < ROWS; rr++ ) {
+      out.setString( 0, course( rr ) );
+      out.setString( 1, gradeId( rr ) );
+      out.setBoolean( 2, 0 == (rr % 2) );
+      out.setInt( 3, rr );
+      out.setLong( 4, 1000000000000L + rr );
+      if ( hasScore( rr ) ) {
+        out.setDouble( 5, rr + 0.5 );
+      }
+      else {
+        out.setNull( 5 );
+      }
+      out.endRow();
+    }
+    out.close();
+  }
+
+  private static void read( File file ) throws IOException
+  {
+    byte[] bytes = new byte[ (int) file.length() ];
+    RandomAccessFile raf = new RandomAccessFile( file, "r" );
+    try {
+      raf.readFully( bytes );
+    }
+    finally {
+      raf.close();
+    }
+
+    // Header
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ) );
+    checkMagic( in, "header" );
+    check( 1 == in.readInt(), "version" );
+    check( NAMES.length == in.readInt(), "field count" );
+    for ( int ff = 0; ff < NAMES.length; ff++ ) {
+      check( NAMES[ ff ].equals( readString( in ) ), "name of field " + ff );
+      check( TYPES[ ff ] == in.readByte(), "type of field " + ff );
+    }
+    int firstGroup = bytes.length - in.available();
+
+    // Trailer: the footer offset and the magic
+    DataInputStream trailer = new DataInputStream( new ByteArrayInputStream( bytes, bytes.length - 12, 12 ) );
+    long footerOffset = trailer.readLong();
+    checkMagic( trailer, "trailer" );
+    check( (footerOffset > firstGroup) && (footerOffset < bytes.length - 12), "footer offset " + footerOffset );
+
+    // Footer, then each row group where the footer says it is
+    DataInputStream footer = new DataInputStream( new ByteArrayInputStream( bytes, (int) footerOffset, bytes.length - (int) footerOffset ) );
+    int rowGroups = footer.readInt();
+    check( 3 == rowGroups, "row groups " + rowGroups );
+    long expectedOffset = firstGroup;
+    int row = 0;
+    for ( int gg = 0; gg < rowGroups; gg++ ) {
+      long offset = footer.readLong();
+      int rows = footer.readInt();
+      check( expectedOffset == offset, "offset of row group " + gg + ": " + offset + ", expected " + expectedOffset );
+      check( Math.min( ROW_GROUP_ROWS, ROWS - row ) == rows, "rows in row group " + gg );
+
+      DataInputStream group = new DataInputStream( new ByteArrayInputStream( bytes, (int) offset, (int) (footerOffset - offset) ) );
+      check( rows == group.readInt(), "rows at the start of row group " + gg );
+      for ( int ff = 0; ff < TYPES.length; ff++ ) {
+        byte[] chunk = new byte[ group.readInt() ];
+        group.readFully( chunk );
+        checkChunk( new DataInputStream( new ByteArrayInputStream( chunk ) ), ff, row, rows );
+        checkStats( footer, ff, row, rows );
+      }
+      expectedOffset = footerOffset - group.available();
+      row += rows;
+    }
+    check( ROWS == row, "rows in the file " + row );
+    check( footerOffset == expectedOffset, "footer offset " + footerOffset + " doesn't follow the last row group at " + expectedOffset );
+    check( 12 == footer.available(), "footer length" );
+  }
+
+  private static void checkChunk( DataInputStream chunk, int field, int first, int rows ) throws IOException
+  {
+    String where = NAMES[ field ] + " in rows " + first + "+" + rows;
+    if ( ColumnarWriter.STRING == TYPES[ field ] ) {
+      byte encoding = chunk.readByte();
+      String[] values = new String[ rows ];
+      if ( 0 == encoding ) {
+        String[] dictionary = new String[ chunk.readInt() ];
+        for ( int ii = 0; ii < dictionary.length; ii++ ) {
+          dictionary[ ii ] = readString( chunk );
+        }
+        int width = chunk.readByte();
+        check( 1 == width, "dictionary index width of " + where );
+        for ( int rr = 0; rr < rows; rr++ ) {
+          values[ rr ] = dictionary[ chunk.readUnsignedByte() ];
+        }
+        check( 0 == field, "dictionary encoding of " + where );
+      }
+      else {
+        check( 1 == encoding, "encoding of " + where );
+        for ( int rr = 0; rr < rows; rr++ ) {
+          values[ rr ] = readString( chunk );
+        }
+        check( 1 == field, "plain encoding of " + where );
+      }
+      for ( int rr = 0; rr < rows; rr++ ) {
+        String expected = (0 == field) ? course( first + rr ) : gradeId( first + rr );
+        check( expected.equals( values[ rr ] ), where + ": " + Arrays.toString( values ) );
+      }
+    }
+    else if ( ColumnarWriter.BOOLEAN == TYPES[ field ] ) {
+      for ( int rr = 0; rr < rows; rr++ ) {
+        check( ((0 == ((first + rr) % 2)) ? 1 : 0) == chunk.readByte(), where + " row " + rr );
+      }
+    }
+    else {
+      byte[] bitmap = new byte[ (rows + 7) / 8 ];
+      chunk.readFully( bitmap );
+      for ( int rr = 0; rr < rows; rr++ ) {
+        int row = first + rr;
+        boolean present = 0 != (bitmap[ rr / 8 ] & (0x80 >>> (rr % 8)));
+        check( present == ((ColumnarWriter.DOUBLE != TYPES[ field ]) || hasScore( row )), "bitmap of " + where + " row " + rr );
+        if ( !present ) {
+          continue;
+        }
+        if ( ColumnarWriter.INT == TYPES[ field ] ) {
+          check( row == chunk.readInt(), where + " row " + rr );
+        }
+        else if ( ColumnarWriter.LONG == TYPES[ field ] ) {
+          check( 1000000000000L + row == chunk.readLong(), where + " row " + rr );
+        }
+        else {
+          check( row + 0.5 == chunk.readDouble(), where + " row " + rr );
+        }
+      }
+    }
+    check( 0 == chunk.available(), "length of " + where );
+  }
+
+  private static void checkStats( DataInputStream stats, int field, int first, int rows ) throws IOException
+  {
+    String where = "stats of " + NAMES[ field ] + " in rows " + first + "+" + rows;
+    int last = first + rows - 1;
+    if ( ColumnarWriter.STRING == TYPES[ field ] ) {
+      check( 0 == stats.readInt(), where + " nulls" );
+      int distinct = stats.readInt();
+      check( distinct == ((0 == field) ? (last / 5 - first / 5 + 1) : -1), where + " distinct " + distinct );
+      String min = readString( stats );
+      String max = readString( stats );
+      check( (0 == field) ? (course( first ).equals( min ) && course( last ).equals( max )) : ((null != min) && (null != max) && (min.compareTo( max ) <= 0)),
+             where + " min [" + min + "] max [" + max + "]" );
+    }
+    else if ( ColumnarWriter.BOOLEAN == TYPES[ field ] ) {
+      int trues = 0;
+      for ( int rr = first; rr <= last; rr++ ) {
+        trues += (0 == (rr % 2)) ? 1 : 0;
+      }
+      check( trues == stats.readInt(), where + " trues" );
+    }
+    else if ( ColumnarWriter.INT == TYPES[ field ] ) {
+      check( 0 == stats.readInt(), where + " nulls" );
+      check( first == stats.readInt() && last == stats.readInt(), where + " min and max" );
+    }
+    else if ( ColumnarWriter.LONG == TYPES[ field ] ) {
+      check( 0 == stats.readInt(), where + " nulls" );
+      check( 1000000000000L + first == stats.readLong() && 1000000000000L + last == stats.readLong(), where + " min and max" );
+    }
+    else {
+      int nulls = 0;
+      double min = Double.MAX_VALUE;
+      double max = -Double.MAX_VALUE;
+      for ( int rr = first; rr <= last; rr++ ) {
+        if ( hasScore( rr ) ) {
+          min = Math.min( min, rr + 0.5 );
+          max = Math.max( max, rr + 0.5 );
+        }
+        else {
+          nulls++;
+        }
+      }
+      check( nulls == stats.readInt(), where + " nulls" );
+      if ( nulls < rows ) {
+        check( min == stats.readDouble() && max == stats.readDouble(), where + " min and max" );
+      }
+    }
+  }
+
+  private static void checkMagic( DataInputStream in, String where ) throws IOException
+  {
+    byte[] magic = new byte[ 4 ];
+    in.readFully( magic );
+    check( "GCOL".equals( new String( magic, "US-ASCII" ) ), "magic in the " + where );
+  }
+
+  private static String readString( DataInputStream in ) throws IOException
+  {
+    int length = in.readInt();
+    if ( length < 0 ) {
+      return null;
+    }
+    byte[] bytes = new byte[ length ];
+    in.readFully( bytes );
+    return new String( bytes, "UTF-8" );
+  }
+
+  private static void check( boolean condition, String message )
+  {
+    if ( !condition ) {
+      System.err.println( "ColumnarWriterTest FAILED: " + message );
+      System.exit( 1 );
+    }
+  }
+}
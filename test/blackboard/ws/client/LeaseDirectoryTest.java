@@ -0,0 +1,116 @@
+package blackboard.ws.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+
+/**
+ * Runs two workers on one lease directory, the first of which fails to
+ * write a course between two it writes fine, and checks that the failed
+ * course's lease expires so the second worker takes it over, that the
+ * courses still held stay renewed, and that the merged report has every
+ * course once and none of the failed course's bytes.  Exits non-zero if a
+ * check fails.
+ */
+class LeaseDirectoryTest
+{
+  private static final long RENEW_MILLIS = 50;
+  private static final long EXPIRE_MILLIS = 400;
+
+  public static void main( String[] args ) throws Exception
+  {
+    File dir = File.createTempFile( "LeaseDirectoryTest", "" );
+    dir.delete();
+    LeaseDirectory first = new LeaseDirectory( dir, "first", RENEW_MILLIS, EXPIRE_MILLIS );
+    LeaseDirectory second = new LeaseDirectory( dir, "second", RENEW_MILLIS, EXPIRE_MILLIS );
+    try {
+      first.start();
+      second.start();
+      run( first, second );
+    }
+    finally {
+      first.close();
+      second.close();
+      delete( dir );
+    }
+    System.out.println( "LeaseDirectoryTest: all checks passed." );
+  }
+
+  private static void run( LeaseDirectory first, LeaseDirectory second ) throws IOException, InterruptedException
+  {
+    for ( String course : new String[] { "_1_1", "_2_1", "_3_1", "_4_1" } ) {
+      check( first.claim( course ), "first worker claims [" + course + "]" );
+    }
+
+    OutputStream report = new FileOutputStream( first.getReportFile(), true );
+    try {
+      long offset = write( report, 0, "C1 row\n" );
+      first.commit( "_1_1", "C1", offset );
+      offset = write( report, offset, "C2 partial" ); // Fails to be written out
+      first.release( "_2_1", offset );
+      offset = write( report, offset, "C3 row\n" );
+      first.commit( "_3_1", "C3", offset );
+    }
+    finally {
+      report.close();
+    }
+
+    check( !second.claim( "_2_1" ), "failed course is taken over before its lease expired" );
+    Thread.sleep( 2 * EXPIRE_MILLIS );
+    check( !second.claim( "_4_1" ), "course still held is taken over, its lease wasn't renewed" );
+    check( second.claim( "_2_1" ), "failed course's lease didn't expire" );
+    check( !first.claim( "_1_1" ) && !second.claim( "_3_1" ), "committed courses are claimed again" );
+
+    report = new FileOutputStream( second.getReportFile(), true );
+    try {
+      second.commit( "_2_1", "C2", write( report, 0, "C2 row\n" ) );
+    }
+    finally {
+      report.close();
+    }
+    report = new FileOutputStream( first.getReportFile(), true );
+    try {
+      first.commit( "_4_1", "C4", write( report, first.getReportFile().length(), "C4 row\n" ) );
+    }
+    finally {
+      report.close();
+    }
+
+    ByteArrayOutputStream merged = new ByteArrayOutputStream();
+    check( first.merge( Channels.newChannel( merged ), "HEADER\n".getBytes( "UTF-8" ) ), "first worker merges" );
+    String expected = "HEADER\nC1 row\nC2 row\nC3 row\nC4 row\n";
+    check( expected.equals( merged.toString( "UTF-8" ) ), "merged report [" + merged.toString( "UTF-8" ) + "], expected [" + expected + "]" );
+    check( !second.merge( Channels.newChannel( new ByteArrayOutputStream() ), new byte[ 0 ] ), "second worker merges again" );
+  }
+
+  /* Writes a course's bytes to a report at offset, returns where they end. */
+  private static long write( OutputStream report, long offset, String bytes ) throws IOException
+  {
+    byte[] encoded = bytes.getBytes( "UTF-8" );
+    report.write( encoded );
+    report.flush();
+    return offset + encoded.length;
+  }
+
+  private static void delete( File file )
+  {
+    File[] children = file.listFiles();
+    if ( null != children ) {
+      for ( File child : children ) {
+        delete( child );
+      }
+    }
+    file.delete();
+  }
+
+  private static void check( boolean condition, String message )
+  {
+    if ( !condition ) {
+      System.err.println( "LeaseDirectoryTest FAILED: " + message );
+      System.exit( 1 );
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package blackboard.ws.client;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a small fetch/join/write pipeline shaped like the extract's, with
+ * queues and courses in flight small enough that a dead stage blocks
+ * everything upstream of it, and checks that a failure aborts the run
+ * instead of hanging it.  Exits non-zero if a check fails.
+ */
+class PipelineTest
+{
+  private static final int COURSES = 200;
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  public static void main( String[] args ) throws Exception
+  {
+    completedPipelineFinishes();
+    failedStageAbortsPipeline();
+    failedWorkerAbortsPipeline();
+    System.out.println( "PipelineTest: all checks passed." );
+  }
+
+  /* Without a failure, every course makes it through and finish() returns. */
+  private static void completedPipelineFinishes() throws Exception
+  {
+    Throwable failure = run( -1, -1 );
+    check( null == failure, "completed pipeline failed: " + failure );
+  }
+
+  /* The writer dies a few courses in, with the workers and the submitting thread blocked behind it. */
+  private static void failedStageAbortsPipeline() throws Exception
+  {
+    Throwable failure = run( 5, -1 );
+    check( failure instanceof IOException, "expected the abort as an IOException, got: " + failure );
+    check( (null != failure) && (failure.getCause() instanceof IOException) && "write failed".equals( failure.getCause().getMessage() ),
+           "expected the write failure as the cause, got: " + ((null == failure) ? null : failure.getCause()) );
+  }
+
+  /* A worker dies with an Error, which would otherwise leave the writer waiting for its course. */
+  private static void failedWorkerAbortsPipeline() throws Exception
+  {
+    Throwable failure = run( -1, 7 );
+    check( failure instanceof IOException, "expected the abort as an IOException, got: " + failure );
+    check( (null != failure) && (failure.getCause() instanceof OutOfMemoryError),
+           "expected the worker's error as the cause, got: " + ((null == failure) ? null : failure.getCause()) );
+  }
+
+  /*
+   * Runs the pipeline on its own thread the way doMain does, failing the
+   * writer after failWriteAt courses and the worker of course failFetchAt
+   * (-1 for never).  Returns what finish() threw, null if nothing.
+   */
+  private static Throwable run( final int failWriteAt, final int failFetchAt ) throws Exception
+  {
+    final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+    final int[] written = new int[ 1 ];
+    Thread main = new Thread( new Runnable() {
+      public void run() {
+        ExecutorService workers = Executors.newFixedThreadPool( 4 );
+        final BlockingQueue<Integer> fetchedQueue = new ArrayBlockingQueue<Integer>( 1 );
+        final BlockingQueue<Integer> joinedQueue = new ArrayBlockingQueue<Integer>( 1 );
+        final Semaphore coursesInFlight = new Semaphore( 6 );
+        final Pipeline pipeline = new Pipeline( 2, workers, coursesInFlight, fetchedQueue, joinedQueue );
+        try {
+          pipeline.start( "join", new Callable<Void>() {
+            public Void call() throws InterruptedException {
+              for ( Integer course = fetchedQueue.take(); course >= 0; course = fetchedQueue.take() ) {
+                joinedQueue.put( course );
+              }
+              joinedQueue.put( -1 );
+              return null;
+            }
+          } );
+          pipeline.start( "write", new Callable<Void>() {
+            public Void call() throws InterruptedException, IOException {
+              for ( Integer course = joinedQueue.take(); course >= 0; course = joinedQueue.take() ) {
+                if ( written[ 0 ] == failWriteAt ) {
+                  throw new IOException( "write failed" );
+                }
+                written[ 0 ]++;
+                coursesInFlight.release();
+              }
+              return null;
+            }
+          } );
+
+          for ( int ii = 0; ii < COURSES; ii++ ) {
+            final int course = ii;
+            coursesInFlight.acquireUninterruptibly();
+            boolean submitted = pipeline.submit( new Runnable() {
+              public void run() {
+                try {
+                  if ( course == failFetchAt ) {
+                    throw new OutOfMemoryError( "fetch failed" );
+                  }
+                  fetchedQueue.put( course );
+                }
+                catch( Throwable t ) {
+                  if ( !(t instanceof InterruptedException) ) {
+                    pipeline.abort( "fetch", t );
+                  }
+                }
+              }
+            } );
+            if ( !submitted ) {
+              break;
+            }
+          }
+          pipeline.awaitWorkers();
+          if ( !pipeline.isAborted() ) {
+            fetchedQueue.put( -1 );
+          }
+          pipeline.finish();
+        }
+        catch( Throwable t ) {
+          thrown.set( t );
+        }
+        finally {
+          pipeline.shutdownNow();
+        }
+      }
+    }, "pipeline-test" );
+    main.setDaemon( true );
+    main.start();
+    main.join( TIMEOUT_MILLIS );
+    check( !main.isAlive(), "pipeline hung (failWriteAt=" + failWriteAt + ", failFetchAt=" + failFetchAt + ")" );
+    if ( (failWriteAt < 0) && (failFetchAt < 0) ) {
+      check( COURSES == written[ 0 ], "wrote " + written[ 0 ] + " of " + COURSES + " courses" );
+    }
+    return thrown.get();
+  }
+
+  private static void check( boolean condition, String message )
+  {
+    if ( !condition ) {
+      System.err.println( "PipelineTest FAILED: " + message );
+      System.exit( 1 );
+    }
+  }
+}